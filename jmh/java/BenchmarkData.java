@@ -0,0 +1,37 @@
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.util.List;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * The initialized MapServer and the recorded queries of <code>test_data</code>, shared by every
+ * benchmark so they measure the same requests the tests check. Benchmarks are run, like the
+ * tests, from the directory holding berkeley.osm, img/ and test_data, and need jmh-core and
+ * jmh-generator-annprocess on the classpath.
+ */
+@State(Scope.Benchmark)
+public class BenchmarkData {
+    static final String OSM_DB_PATH = "berkeley.osm";
+    private static final String TEST_DATA = "test_data";
+
+    List<TestParams> params;
+
+    @Setup(Level.Trial)
+    @SuppressWarnings("unchecked")
+    public void load() throws IOException, ClassNotFoundException {
+        MapServer.initialize();
+        try (ObjectInputStream in = new ObjectInputStream(new FileInputStream(TEST_DATA))) {
+            params = (List<TestParams>) in.readObject();
+        }
+    }
+
+    /** The recorded query after <code>i</code>, cycling. */
+    TestParams get(int i) {
+        return params.get(Math.floorMod(i, params.size()));
+    }
+}
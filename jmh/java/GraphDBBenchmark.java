@@ -0,0 +1,48 @@
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Building GraphDB at startup, from the OSM XML and from its compiled snapshot. Each call is a
+ * whole startup's work, so calls are timed one at a time.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(1)
+public class GraphDBBenchmark {
+    /** Compiles the snapshot if it is missing or older than the OSM file. */
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        File osm = new File(BenchmarkData.OSM_DB_PATH);
+        File snapshot = new File(GraphSnapshot.pathFor(BenchmarkData.OSM_DB_PATH));
+        if (!GraphSnapshot.isUsable(snapshot, osm)) {
+            GraphDB g = new GraphDB(BenchmarkData.OSM_DB_PATH, false);
+            GraphSnapshot.write(snapshot, g.graph(), g.locations());
+        }
+    }
+
+    @Benchmark
+    public GraphDB parseOsm() {
+        return new GraphDB(BenchmarkData.OSM_DB_PATH, false);
+    }
+
+    @Benchmark
+    public GraphDB loadSnapshot() {
+        return new GraphDB(BenchmarkData.OSM_DB_PATH, true);
+    }
+}
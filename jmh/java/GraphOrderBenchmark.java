@@ -0,0 +1,105 @@
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * A* searches over the road graph with its junctions numbered in the order the OSM file lists
+ * them, and along a Hilbert curve as GraphDB serves it. Both route the same random node pairs,
+ * and the settledNodes counter reports how many nodes each order settles per second.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GraphOrderBenchmark {
+    private static final int PAIRS = 1024;
+
+    @Param({"input", "hilbert"})
+    public String order;
+
+    private AStarRouter router;
+    private int[] starts;
+    private int[] ends;
+    private int next;
+
+    /** Nodes settled by the searches of one iteration. */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Settled {
+        public long settledNodes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            settledNodes = 0;
+        }
+    }
+
+    /**
+     * Reads only the roads: named locations are dropped rather than added to the server's
+     * search indexes, which would otherwise hold every location once per parse.
+     */
+    private static final class RoadsOnly extends GraphDB {
+        RoadsOnly(String dbPath) {
+            super(dbPath, false);
+        }
+
+        @Override
+        void addLocation(GraphNode node) {
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        GraphDB db = new RoadsOnly(BenchmarkData.OSM_DB_PATH);
+        RoadGraph graph = db.graph();
+        if (order.equals("input")) {
+            RoadGraph.Builder roads = new RoadGraph.Builder();
+            try (InputStream in = new FileInputStream(BenchmarkData.OSM_DB_PATH)) {
+                OsmParser.parse(in, db, roads);
+            }
+            graph = GraphCleaner.clean(roads.build(), false);
+        }
+        router = new AStarRouter(graph);
+
+        /* Pick pairs by id, so both orders route between the same places. */
+        long[] ids = new long[graph.size()];
+        for (int v = 0; v < ids.length; v++) {
+            ids[v] = graph.id(v);
+        }
+        Arrays.sort(ids);
+        Random random = new Random(61);
+        starts = new int[PAIRS];
+        ends = new int[PAIRS];
+        for (int i = 0; i < PAIRS; i++) {
+            starts[i] = graph.indexOf(ids[random.nextInt(ids.length)]);
+            ends[i] = graph.indexOf(ids[random.nextInt(ids.length)]);
+        }
+    }
+
+    @Benchmark
+    public int[] route(Settled settled) {
+        int i = next++ % PAIRS;
+        int[] path = router.route(starts[i], ends[i]);
+        settled.settledNodes += router.settledCount();
+        return path;
+    }
+}
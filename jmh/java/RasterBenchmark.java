@@ -0,0 +1,87 @@
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Tile selection, raster composition and JPEG encoding, cycling through the raster queries of
+ * <code>test_data</code>.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RasterBenchmark {
+    private BenchmarkData data;
+    private QuadTree tree;
+    /** Composed rasters of every query, to encode. */
+    private List<BufferedImage> rasters;
+    private final ByteArrayOutputStream jpeg = new ByteArrayOutputStream(1 << 20);
+    private int next;
+
+    /** Empties the tile cache before every call, so each raster reads all its tiles. */
+    @State(Scope.Thread)
+    public static class ColdTiles {
+        @Setup(Level.Invocation)
+        public void clear() {
+            MapServer.getTiles().clear();
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp(BenchmarkData benchmarkData) {
+        data = benchmarkData;
+        tree = new QuadTree();
+        rasters = new ArrayList<>();
+        for (TestParams p : data.params) {
+            rasters.add(MapServer.getMapRaster(p.rasterParams, new HashMap<>()));
+        }
+    }
+
+    @Benchmark
+    public List<QTreeNode> getImg() {
+        return tree.getImg(data.get(next++).rasterParams);
+    }
+
+    @Benchmark
+    public void getMapRasterWarm(Blackhole bh) {
+        render(bh);
+    }
+
+    @Benchmark
+    public void getMapRasterCold(ColdTiles cold, Blackhole bh) {
+        render(bh);
+    }
+
+    /** Compose a raster and hand its image back to the pool, as a request would. */
+    private void render(Blackhole bh) {
+        BufferedImage im = MapServer.getMapRaster(data.get(next++).rasterParams,
+                new HashMap<>());
+        bh.consume(im);
+        MapServer.getImagePool().release(im);
+    }
+
+    @Benchmark
+    public int writeJpgToStream() {
+        jpeg.reset();
+        MapServer.writeJpgToStream(rasters.get(next++ % rasters.size()), jpeg);
+        return jpeg.size();
+    }
+}
@@ -0,0 +1,68 @@
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Snapping route endpoints to the road graph, and finding and drawing routes, cycling through
+ * the route queries of <code>test_data</code>.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RouteBenchmark {
+    private BenchmarkData data;
+    /** Raster of every query and its parameters, to draw routes onto. */
+    private List<BufferedImage> rasters;
+    private List<Map<String, Object>> rasterResults;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp(BenchmarkData benchmarkData) {
+        data = benchmarkData;
+        rasters = new ArrayList<>();
+        rasterResults = new ArrayList<>();
+        for (TestParams p : data.params) {
+            Map<String, Object> result = new HashMap<>();
+            rasters.add(MapServer.getMapRaster(p.rasterParams, result));
+            rasterResults.add(result);
+        }
+    }
+
+    @Benchmark
+    public int[] findStartAndEnd() {
+        Map<String, Double> route = data.get(next++).routeParams;
+        return MapServer.findStartAndEnd(route.get("start_lon"), route.get("start_lat"),
+                route.get("end_lon"), route.get("end_lat"));
+    }
+
+    @Benchmark
+    public List<Long> findRoute() {
+        return MapServer.findAndDrawRoute(data.get(next++).routeParams, null, null);
+    }
+
+    /** Routes drawn over and over onto the same rasters; drawing costs the same either way. */
+    @Benchmark
+    public List<Long> findAndDrawRoute() {
+        int i = next++ % rasters.size();
+        return MapServer.findAndDrawRoute(data.get(i).routeParams, rasterResults.get(i),
+                rasters.get(i));
+    }
+}
@@ -0,0 +1,72 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** Location search, cycling through the search terms of <code>test_data</code>. */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SearchBenchmark {
+    private BenchmarkData data;
+    /** Cleaned prefixes, as the Trie is queried with. */
+    private List<String> prefixes;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp(BenchmarkData benchmarkData) {
+        data = benchmarkData;
+        prefixes = new ArrayList<>();
+        for (TestParams p : data.params) {
+            prefixes.add(GraphDB.cleanString(p.prefixSearchParam));
+        }
+    }
+
+    @Benchmark
+    public List<GraphNode> getWordsWithPrefix() {
+        return MapServer.getTrie().getWordsWithPrefix(prefixes.get(next++ % prefixes.size()));
+    }
+
+    @Benchmark
+    public List<String> getLocationsByPrefix() {
+        return MapServer.getLocationsByPrefix(data.get(next++).prefixSearchParam);
+    }
+
+    /** The bounded suggestions /search answers an autocomplete keystroke with. */
+    @Benchmark
+    public List<String> getTopLocationsByPrefix() {
+        return MapServer.getLocationsByPrefix(data.get(next++).prefixSearchParam, 10);
+    }
+
+    /** The same suggestions allowing one typo, as /search answers with fuzzy=1. */
+    @Benchmark
+    public List<String> getFuzzyLocationsByPrefix() {
+        return MapServer.getLocationsByFuzzyPrefix(data.get(next++).prefixSearchParam, 1, 10);
+    }
+
+    @Benchmark
+    public List<Map<String, Object>> getLocations() {
+        return MapServer.getLocations(data.get(next++).actualSearchParam);
+    }
+
+    /** The same terms looked up word by word, as /search answers with words. */
+    @Benchmark
+    public List<Map<String, Object>> getLocationsByWords() {
+        return MapServer.getLocationsByWords(data.get(next++).actualSearchParam);
+    }
+}
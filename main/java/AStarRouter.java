@@ -0,0 +1,132 @@
+import java.util.Arrays;
+
+/**
+ * A* shortest-path search over a RoadGraph. Edge weights are the euclidean length of the chain
+ * each edge follows in (lon, lat) space, so the straight-line distance to the goal is an
+ * admissible and consistent heuristic. Only junctions are searched: a route leaves a shape point
+ * through either end of its chain, and the search stops once no junction left in the fringe
+ * can lead to a shorter route than the best found into the end node.
+ * <p>
+ * All per-node state lives in arrays sized to the graph and is invalidated by bumping a
+ * generation counter instead of being cleared, so a search allocates nothing but its result.
+ * A router is not thread-safe; give each thread its own.
+ * </p>
+ */
+public class AStarRouter implements Router {
+    private final RoadGraph graph;
+    private final IndexedMinHeap fringe;
+    private final double[] dist;
+    /** The edge each junction was reached by, or ~i if it is the start's exit i. */
+    private final int[] prevEdge;
+    /** dist and prevEdge of junction v are only meaningful when stamp[v] == generation. */
+    private final int[] stamp;
+    private int generation;
+    private int settled;
+    private final RoadGraph.Path path = new RoadGraph.Path();
+    private int[] edges = new int[64];
+
+    public AStarRouter(RoadGraph graph) {
+        this.graph = graph;
+        int n = graph.junctionCount();
+        fringe = new IndexedMinHeap(n);
+        dist = new double[n];
+        prevEdge = new int[n];
+        stamp = new int[n];
+    }
+
+    @Override
+    public RoadGraph graph() {
+        return graph;
+    }
+
+    @Override
+    public int settledCount() {
+        return settled;
+    }
+
+    @Override
+    public int[] route(int start, int end) {
+        settled = 0;
+        if (start == end) {
+            return new int[]{start};
+        }
+        nextGeneration();
+        fringe.clear();
+        double endLon = graph.lon(end);
+        double endLat = graph.lat(end);
+
+        for (int i = 0; i < graph.exitCount(start); i++) {
+            int v = graph.exit(start, i);
+            double d = graph.exitDistance(start, i);
+            if (stamp[v] != generation || d < dist[v]) {
+                reach(v, d, ~i);
+                fringe.insertOrDecrease(v, d + heuristic(v, endLon, endLat));
+            }
+        }
+        /* Start and end on one chain may be closest along it. */
+        double best = graph.distanceAlongChain(start, end);
+        int bestExit = -1;
+        int last = -1;
+        while (!fringe.isEmpty() && fringe.minKey() < best) {
+            int v = fringe.poll();
+            settled++;
+            double d = dist[v];
+            for (int i = 0; i < graph.exitCount(end); i++) {
+                if (graph.exit(end, i) == v && d + graph.exitDistance(end, i) < best) {
+                    best = d + graph.exitDistance(end, i);
+                    bestExit = i;
+                    last = v;
+                }
+            }
+            for (int e = graph.firstEdge(v); e < graph.firstEdge(v + 1); e++) {
+                int w = graph.target(e);
+                double alt = d + graph.weight(e);
+                if (stamp[w] != generation || alt < dist[w]) {
+                    reach(w, alt, e);
+                    fringe.insertOrDecrease(w, alt + heuristic(w, endLon, endLat));
+                }
+            }
+        }
+        if (best == Double.POSITIVE_INFINITY) {
+            return new int[0];
+        }
+        path.clear();
+        path.add(start);
+        if (last < 0) {
+            graph.walkAlongChain(start, end, path);
+            return path.toArray();
+        }
+        int count = 0;
+        int v = last;
+        for (; prevEdge[v] >= 0; v = graph.source(prevEdge[v])) {
+            if (count == edges.length) {
+                edges = Arrays.copyOf(edges, count * 2);
+            }
+            edges[count++] = prevEdge[v];
+        }
+        graph.walkToExit(start, ~prevEdge[v], path);
+        for (int i = count - 1; i >= 0; i--) {
+            graph.walkEdge(edges[i], path);
+        }
+        graph.walkFromExit(end, bestExit, path);
+        return path.toArray();
+    }
+
+    private double heuristic(int v, double endLon, double endLat) {
+        return MapServer.h(graph.lon(v), graph.lat(v), endLon, endLat);
+    }
+
+    private void reach(int v, double d, int via) {
+        stamp[v] = generation;
+        dist[v] = d;
+        prevEdge[v] = via;
+    }
+
+    private void nextGeneration() {
+        generation++;
+        if (generation == 0) {  // wrapped around; stale stamps could now look current
+            Arrays.fill(stamp, 0);
+            generation = 1;
+        }
+    }
+}
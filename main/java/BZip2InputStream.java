@@ -0,0 +1,406 @@
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * Decompresses a bzip2 stream as it is read, so a .osm.bz2 extract can be parsed without
+ * inflating it to disk first. Each block is Huffman decoded, move-to-front and run-length
+ * decoded into one array, and its Burrows-Wheeler transform is inverted as bytes are read.
+ * Block and stream CRCs are checked, and concatenated streams, as written by parallel
+ * compressors, are read one after another.
+ * @see <a href="https://github.com/dsnet/compress/blob/master/doc/bzip2-format.pdf">
+ *     The bzip2 format</a>
+ */
+public class BZip2InputStream extends InputStream {
+    private static final long BLOCK_MAGIC = 0x314159265359L;
+    private static final long END_MAGIC = 0x177245385090L;
+    private static final int MAX_GROUPS = 6;
+    private static final int MAX_ALPHABET = 258;
+    private static final int MAX_CODE_LENGTH = 20;
+    private static final int MAX_SELECTORS = 18002;
+    private static final int GROUP_SIZE = 50;
+    private static final int RUNA = 0;
+    private static final int RUNB = 1;
+    private static final int[] CRC_TABLE = new int[256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            int c = i << 24;
+            for (int j = 0; j < 8; j++) {
+                c = (c & 0x80000000) != 0 ? (c << 1) ^ 0x04C11DB7 : c << 1;
+            }
+            CRC_TABLE[i] = c;
+        }
+    }
+
+    private final InputStream in;
+    private long bits;
+    private int bitCount;
+
+    private int blockSize;
+    private boolean eof;
+    private int streamCrc;
+
+    /* The current block: its bytes in BWT order, linked into output order through tt. */
+    private byte[] block = new byte[0];
+    private int[] tt = new int[0];
+    private int blockLength;
+    private int expectedBlockCrc;
+    private int blockCrc;
+    private int tPos;
+    private int remaining;
+    /* Undoing the initial run-length encoding: runs of 4 are followed by a repeat count. */
+    private int last = -1;
+    private int runLength;
+    private int repeat;
+
+    /* Huffman decoding state, reused across blocks. */
+    private final byte[] selectors = new byte[MAX_SELECTORS];
+    private final int[][] limit = new int[MAX_GROUPS][MAX_CODE_LENGTH + 2];
+    private final int[][] base = new int[MAX_GROUPS][MAX_CODE_LENGTH + 2];
+    private final int[][] perm = new int[MAX_GROUPS][MAX_ALPHABET];
+    private final int[] minLength = new int[MAX_GROUPS];
+
+    /**
+     * @param in The compressed stream, starting with a bzip2 stream header.
+     * @throws IOException If reading fails or <code>in</code> is not bzip2.
+     */
+    public BZip2InputStream(InputStream in) throws IOException {
+        this.in = new BufferedInputStream(in, 1 << 16);
+        if (!readStreamHeader()) {
+            throw new IOException("Not a bzip2 stream");
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        int n = 0;
+        while (n < len) {
+            int c;
+            if (repeat > 0) {
+                repeat--;
+                c = last;
+            } else if (remaining > 0) {
+                tPos = tt[tPos];
+                int next = tPos & 0xFF;
+                tPos >>>= 8;
+                remaining--;
+                if (runLength == 4) {
+                    repeat = next;
+                    runLength = 0;
+                    continue;
+                }
+                if (next == last) {
+                    runLength++;
+                } else {
+                    last = next;
+                    runLength = 1;
+                }
+                c = next;
+            } else if (eof || !nextBlock()) {
+                return n == 0 ? -1 : n;
+            } else {
+                continue;
+            }
+            blockCrc = (blockCrc << 8) ^ CRC_TABLE[((blockCrc >>> 24) ^ c) & 0xFF];
+            b[off + n++] = (byte) c;
+        }
+        return n;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+    /* ---- Bits ---- */
+
+    private int bits(int n) throws IOException {
+        while (bitCount < n) {
+            int c = in.read();
+            if (c < 0) {
+                throw new IOException("Truncated bzip2 stream");
+            }
+            bits = (bits << 8) | c;
+            bitCount += 8;
+        }
+        bitCount -= n;
+        return (int) ((bits >>> bitCount) & ((1L << n) - 1));
+    }
+
+    private boolean bit() throws IOException {
+        return bits(1) != 0;
+    }
+
+    private long magic() throws IOException {
+        return ((long) bits(24) << 24) | bits(24);
+    }
+
+    /* ---- Blocks ---- */
+
+    /** @return Whether a stream header was read; false at a clean end of input. */
+    private boolean readStreamHeader() throws IOException {
+        int b = in.read();
+        if (b < 0) {
+            return false;
+        }
+        if (b != 'B' || in.read() != 'Z' || in.read() != 'h') {
+            throw new IOException("Not a bzip2 stream");
+        }
+        int level = in.read() - '0';
+        if (level < 1 || level > 9) {
+            throw new IOException("Bad bzip2 block size");
+        }
+        blockSize = level * 100000;
+        streamCrc = 0;
+        bits = 0;
+        bitCount = 0;
+        return true;
+    }
+
+    /**
+     * Finish the current block and decode the next, moving on to a following stream if need be.
+     * @return Whether there is another block.
+     */
+    private boolean nextBlock() throws IOException {
+        if (blockLength > 0) {
+            if (~blockCrc != expectedBlockCrc) {
+                throw new IOException("bzip2 block CRC mismatch");
+            }
+            streamCrc = ((streamCrc << 1) | (streamCrc >>> 31)) ^ expectedBlockCrc;
+            blockLength = 0;
+        }
+        long magic = magic();
+        while (magic == END_MAGIC) {
+            if (bits(32) != streamCrc) {
+                throw new IOException("bzip2 stream CRC mismatch");
+            }
+            /* Streams end on a byte boundary; another may follow. */
+            if (!readStreamHeader()) {
+                eof = true;
+                return false;
+            }
+            magic = magic();
+        }
+        if (magic != BLOCK_MAGIC) {
+            throw new IOException("Bad bzip2 block header");
+        }
+        expectedBlockCrc = bits(32);
+        if (bit()) {
+            throw new IOException("Randomised bzip2 blocks are not supported");
+        }
+        int origPtr = bits(24);
+        decodeBlock();
+        if (origPtr >= blockLength) {
+            throw new IOException("Bad bzip2 BWT origin");
+        }
+        tPos = tt[origPtr] >>> 8;
+        remaining = blockLength;
+        blockCrc = 0xFFFFFFFF;
+        last = -1;
+        runLength = 0;
+        repeat = 0;
+        return true;
+    }
+
+    /** Read the symbol map, Huffman tables and symbols of a block and undo the BWT's sort. */
+    private void decodeBlock() throws IOException {
+        byte[] symbols = new byte[256];
+        int symbolCount = 0;
+        int used = bits(16);
+        for (int i = 0; i < 16; i++) {
+            if ((used & (0x8000 >>> i)) != 0) {
+                int bitmap = bits(16);
+                for (int j = 0; j < 16; j++) {
+                    if ((bitmap & (0x8000 >>> j)) != 0) {
+                        symbols[symbolCount++] = (byte) (i * 16 + j);
+                    }
+                }
+            }
+        }
+        if (symbolCount == 0) {
+            throw new IOException("bzip2 block uses no symbols");
+        }
+        int alphabet = symbolCount + 2;
+
+        int groups = bits(3);
+        int selectorCount = bits(15);
+        if (groups < 2 || groups > MAX_GROUPS || selectorCount < 1) {
+            throw new IOException("Bad bzip2 Huffman groups");
+        }
+        byte[] mtf = {0, 1, 2, 3, 4, 5};
+        for (int i = 0; i < selectorCount; i++) {
+            int j = 0;
+            while (bit()) {
+                if (++j >= groups) {
+                    throw new IOException("Bad bzip2 selector");
+                }
+            }
+            byte selector = mtf[j];
+            System.arraycopy(mtf, 0, mtf, 1, j);
+            mtf[0] = selector;
+            /* Some encoders write more selectors than can be used; ignore the excess. */
+            if (i < MAX_SELECTORS) {
+                selectors[i] = selector;
+            }
+        }
+        selectorCount = Math.min(selectorCount, MAX_SELECTORS);
+
+        int[] lengths = new int[alphabet];
+        for (int t = 0; t < groups; t++) {
+            int length = bits(5);
+            for (int i = 0; i < alphabet; i++) {
+                while (true) {
+                    if (length < 1 || length > MAX_CODE_LENGTH) {
+                        throw new IOException("Bad bzip2 code length");
+                    }
+                    if (!bit()) {
+                        break;
+                    }
+                    length += bit() ? -1 : 1;
+                }
+                lengths[i] = length;
+            }
+            createDecodeTable(t, lengths, alphabet);
+        }
+
+        if (block.length < blockSize) {
+            block = new byte[blockSize];
+            tt = new int[blockSize];
+        }
+        int[] counts = new int[256];
+        byte[] order = new byte[256];
+        for (int i = 0; i < 256; i++) {
+            order[i] = (byte) i;
+        }
+        int endOfBlock = symbolCount + 1;
+        int length = 0;
+        int selector = -1;
+        int groupLeft = 0;
+        int run = 0;
+        int runWeight = 1;
+        while (true) {
+            if (groupLeft == 0) {
+                if (++selector >= selectorCount) {
+                    throw new IOException("Too few bzip2 selectors");
+                }
+                groupLeft = GROUP_SIZE;
+            }
+            groupLeft--;
+            int sym = decodeSymbol(selectors[selector]);
+            if (sym == RUNA || sym == RUNB) {
+                if (runWeight >= 1 << 21) {
+                    throw new IOException("bzip2 run too long");
+                }
+                run += (sym + 1) * runWeight;
+                runWeight <<= 1;
+                continue;
+            }
+            if (run > 0) {
+                if (run > blockSize - length) {
+                    throw new IOException("bzip2 block too long");
+                }
+                byte b = symbols[order[0] & 0xFF];
+                counts[b & 0xFF] += run;
+                Arrays.fill(block, length, length + run, b);
+                length += run;
+                run = 0;
+                runWeight = 1;
+            }
+            if (sym == endOfBlock) {
+                break;
+            }
+            if (length >= blockSize) {
+                throw new IOException("bzip2 block too long");
+            }
+            int index = sym - 1;
+            byte front = order[index];
+            System.arraycopy(order, 0, order, 1, index);
+            order[0] = front;
+            byte b = symbols[front & 0xFF];
+            counts[b & 0xFF]++;
+            block[length++] = b;
+        }
+        blockLength = length;
+
+        /* Link each byte to its successor: tt[i] holds the byte at i and, above it, the next
+         * position, as the reference decoder's fast path does. */
+        int[] next = new int[256];
+        for (int i = 0, sum = 0; i < 256; i++) {
+            next[i] = sum;
+            sum += counts[i];
+        }
+        for (int i = 0; i < length; i++) {
+            tt[i] = block[i] & 0xFF;
+        }
+        for (int i = 0; i < length; i++) {
+            tt[next[block[i] & 0xFF]++] |= i << 8;
+        }
+    }
+
+    /** Build the canonical Huffman decoding table of group <code>t</code>. */
+    private void createDecodeTable(int t, int[] lengths, int alphabet) {
+        int min = MAX_CODE_LENGTH;
+        int max = 0;
+        for (int i = 0; i < alphabet; i++) {
+            min = Math.min(min, lengths[i]);
+            max = Math.max(max, lengths[i]);
+        }
+        int[] groupPerm = perm[t];
+        int[] groupBase = base[t];
+        int[] groupLimit = limit[t];
+        int p = 0;
+        for (int length = min; length <= max; length++) {
+            for (int i = 0; i < alphabet; i++) {
+                if (lengths[i] == length) {
+                    groupPerm[p++] = i;
+                }
+            }
+        }
+        Arrays.fill(groupBase, 0);
+        for (int i = 0; i < alphabet; i++) {
+            groupBase[lengths[i] + 1]++;
+        }
+        for (int i = 1; i < groupBase.length; i++) {
+            groupBase[i] += groupBase[i - 1];
+        }
+        Arrays.fill(groupLimit, -1);
+        int code = 0;
+        for (int length = min; length <= max; length++) {
+            code += groupBase[length + 1] - groupBase[length];
+            groupLimit[length] = code - 1;
+            code <<= 1;
+        }
+        for (int length = min + 1; length <= max; length++) {
+            groupBase[length] = ((groupLimit[length - 1] + 1) << 1) - groupBase[length];
+        }
+        minLength[t] = min;
+    }
+
+    private int decodeSymbol(int t) throws IOException {
+        int length = minLength[t];
+        int code = bits(length);
+        while (length <= MAX_CODE_LENGTH) {
+            if (code <= limit[t][length]) {
+                int index = code - base[t][length];
+                if (index < 0 || index >= MAX_ALPHABET) {
+                    break;
+                }
+                return perm[t][index];
+            }
+            length++;
+            code = (code << 1) | bits(1);
+        }
+        throw new IOException("Bad bzip2 Huffman code");
+    }
+}
@@ -0,0 +1,671 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * A Contraction Hierarchy over a RoadGraph. Preprocessing contracts the nodes one at a time in
+ * order of importance, adding a shortcut edge wherever removing a node would lengthen a shortest
+ * path between two of its neighbors. A query then only relaxes edges that lead to more important
+ * nodes, searching upward from both ends until the two searches meet, and unpacks the shortcuts
+ * on the way back. Searches settle a few hundred nodes however far apart the endpoints are.
+ * Only the junctions of the graph are contracted; a query enters and leaves them through the
+ * ends of the chains its endpoints lie on, as AStarRouter does.
+ * <p>
+ * Building takes a while, so a hierarchy can be saved next to the OSM file with
+ * <code>java ContractionHierarchy berkeley.osm</code> and is only rebuilt when the road graph
+ * it was built from changes.
+ * </p>
+ */
+public class ContractionHierarchy {
+    /** "BMCH" in ASCII. */
+    private static final int MAGIC = 0x424D4348;
+    /** Bump whenever the file layout or what the fingerprint covers changes. */
+    static final int VERSION = 2;
+    private static final String EXTENSION = ".ch";
+    /** Witness searches give up after this many nodes and add the shortcut to be safe. */
+    private static final int WITNESS_SETTLE_LIMIT = 500;
+
+    private final RoadGraph graph;
+    private final long fingerprint;
+    /* Every edge of the hierarchy: road edges first, then shortcuts. A shortcut from u to w
+     * replaces the edges first (touching u) and second (touching w), which meet at a node
+     * contracted before both. A road edge has first == -1, and second is the RoadGraph edge
+     * from its from node that it stands for. */
+    private final int[] edgeFrom;
+    private final int[] edgeTo;
+    private final int[] edgeFirst;
+    private final int[] edgeSecond;
+    /* Upward adjacency: for node v, the edges to more important nodes are upEdges[i] for i in
+     * [upOffsets[v], upOffsets[v + 1]), leading to upTargets[i] at cost upWeights[i]. */
+    private final int[] upOffsets;
+    private final int[] upTargets;
+    private final double[] upWeights;
+    private final int[] upEdges;
+
+    private ContractionHierarchy(RoadGraph graph, long fingerprint, int[] edgeFrom, int[] edgeTo,
+                                 int[] edgeFirst, int[] edgeSecond, int[] upOffsets,
+                                 int[] upTargets, double[] upWeights, int[] upEdges) {
+        this.graph = graph;
+        this.fingerprint = fingerprint;
+        this.edgeFrom = edgeFrom;
+        this.edgeTo = edgeTo;
+        this.edgeFirst = edgeFirst;
+        this.edgeSecond = edgeSecond;
+        this.upOffsets = upOffsets;
+        this.upTargets = upTargets;
+        this.upWeights = upWeights;
+        this.upEdges = upEdges;
+    }
+
+    /**
+     * Builds the hierarchy for the OSM file given as the first argument (berkeley.osm by
+     * default) and saves it next to that file.
+     */
+    public static void main(String[] args) throws IOException {
+        String dbPath = args.length > 0 ? args[0] : "berkeley.osm";
+        RoadGraph graph = new GraphDB(dbPath).graph();
+        long start = System.nanoTime();
+        ContractionHierarchy ch = build(graph);
+        int shortcuts = 0;
+        for (int first : ch.edgeFirst) {
+            if (first >= 0) {
+                shortcuts++;
+            }
+        }
+        System.out.println("Contracted " + graph.junctionCount() + " junctions in "
+                + (System.nanoTime() - start) / 1000000 + " ms, adding " + shortcuts
+                + " shortcuts");
+        File out = new File(pathFor(dbPath));
+        ch.save(out);
+        System.out.println("Wrote " + out + " (" + out.length() + " bytes)");
+    }
+
+    /** The hierarchy file that belongs to the OSM file at <code>dbPath</code>. */
+    static String pathFor(String dbPath) {
+        return dbPath + EXTENSION;
+    }
+
+    /**
+     * Load the hierarchy saved at <code>path</code> if it was built from <code>graph</code>;
+     * otherwise build it, and try to save it there for next time.
+     */
+    public static ContractionHierarchy loadOrBuild(RoadGraph graph, String path) {
+        File file = new File(path);
+        if (file.isFile()) {
+            try {
+                ContractionHierarchy ch = load(file, graph);
+                if (ch != null) {
+                    return ch;
+                }
+                System.out.println(file + " was built from a different graph; rebuilding");
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        ContractionHierarchy ch = build(graph);
+        try {
+            ch.save(file);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return ch;
+    }
+
+    public RoadGraph graph() {
+        return graph;
+    }
+
+    /** A fresh query over this hierarchy. Queries are not thread-safe; use one per thread. */
+    public Query newQuery() {
+        return new Query();
+    }
+
+    /** Contract every node of <code>graph</code>. */
+    public static ContractionHierarchy build(RoadGraph graph) {
+        return new Builder(graph).build();
+    }
+
+    private int otherEnd(int e, int v) {
+        return edgeFrom[e] == v ? edgeTo[e] : edgeFrom[e];
+    }
+
+    /**
+     * Identifies the exact graph a hierarchy belongs to, so a stale file is never used with a
+     * graph whose node numbering, coordinates or edges have changed. The saved weights come
+     * from the coordinates, so an extract that only moves nodes must not match either.
+     */
+    static long fingerprint(RoadGraph graph) {
+        long h = 1125899906842597L;
+        h = 31 * h + graph.junctionCount();
+        for (int v = 0; v < graph.size(); v++) {
+            h = 31 * h + graph.id(v);
+            h = 31 * h + Double.doubleToLongBits(graph.lon(v));
+            h = 31 * h + Double.doubleToLongBits(graph.lat(v));
+        }
+        for (int v = 0; v <= graph.junctionCount(); v++) {
+            h = 31 * h + graph.firstEdge(v);
+        }
+        for (int e = 0; e < graph.edgeCount(); e++) {
+            h = 31 * h + graph.target(e);
+            h = 31 * h + graph.chain(e);
+            h = 31 * h + Double.doubleToLongBits(graph.weight(e));
+        }
+        return h;
+    }
+
+    void save(File file) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(file)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(fingerprint);
+            out.writeInt(graph.junctionCount());
+            out.writeInt(edgeFrom.length);
+            out.writeInt(upEdges.length);
+            for (int[] column : new int[][]{edgeFrom, edgeTo, edgeFirst, edgeSecond, upOffsets,
+                upTargets, upEdges}) {
+                for (int x : column) {
+                    out.writeInt(x);
+                }
+            }
+            for (double w : upWeights) {
+                out.writeDouble(w);
+            }
+        }
+    }
+
+    /**
+     * Memory-map a saved hierarchy.
+     * @return The hierarchy, or null if it was built from a graph other than <code>graph</code>.
+     * @throws IOException If the file is unreadable, truncated, or of another version.
+     */
+    static ContractionHierarchy load(File file, RoadGraph graph) throws IOException {
+        MappedByteBuffer buf;
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        try {
+            if (buf.getInt() != MAGIC || buf.getInt() != VERSION) {
+                throw new IOException(file + " is not a version " + VERSION + " hierarchy");
+            }
+            long fingerprint = fingerprint(graph);
+            if (buf.getLong() != fingerprint || buf.getInt() != graph.junctionCount()) {
+                return null;
+            }
+            int edgeCount = buf.getInt();
+            int upCount = buf.getInt();
+            int[] edgeFrom = readInts(buf, edgeCount);
+            int[] edgeTo = readInts(buf, edgeCount);
+            int[] edgeFirst = readInts(buf, edgeCount);
+            int[] edgeSecond = readInts(buf, edgeCount);
+            int[] upOffsets = readInts(buf, graph.junctionCount() + 1);
+            int[] upTargets = readInts(buf, upCount);
+            int[] upEdges = readInts(buf, upCount);
+            double[] upWeights = new double[upCount];
+            buf.asDoubleBuffer().get(upWeights);
+            return new ContractionHierarchy(graph, fingerprint, edgeFrom, edgeTo, edgeFirst,
+                    edgeSecond, upOffsets, upTargets, upWeights, upEdges);
+        } catch (RuntimeException e) {
+            throw new IOException(file + " is corrupt", e);
+        }
+    }
+
+    private static int[] readInts(MappedByteBuffer buf, int count) {
+        int[] values = new int[count];
+        buf.asIntBuffer().get(values);
+        buf.position(buf.position() + count * Integer.BYTES);
+        return values;
+    }
+
+    /**
+     * Bidirectional upward search. Both directions share the upward adjacency because roads are
+     * two-way. A direction stops once its smallest tentative distance can no longer beat the
+     * best meeting point, and nodes reached more cheaply from above are stalled rather than
+     * expanded. Each direction starts from the exits of its endpoint, and a search whose
+     * endpoints share a chain starts with the route along it as the best.
+     */
+    public class Query implements Router {
+        private final IndexedMinHeap[] fringe = new IndexedMinHeap[2];
+        private final double[][] dist = new double[2][];
+        /* The edge each node was reached by, or ~i if it is exit i of the endpoint. */
+        private final int[][] prevEdge = new int[2][];
+        private final int[][] stamp = new int[2][];
+        private int generation;
+        private int settled;
+        /* Reused buffers for unpacking shortcuts. */
+        private final RoadGraph.Path path = new RoadGraph.Path();
+        private int[] stack = new int[64];
+        private int[] chain = new int[64];
+
+        Query() {
+            int n = graph.junctionCount();
+            for (int dir = 0; dir < 2; dir++) {
+                fringe[dir] = new IndexedMinHeap(n);
+                dist[dir] = new double[n];
+                prevEdge[dir] = new int[n];
+                stamp[dir] = new int[n];
+            }
+        }
+
+        @Override
+        public RoadGraph graph() {
+            return graph;
+        }
+
+        @Override
+        public int settledCount() {
+            return settled;
+        }
+
+        @Override
+        public int[] route(int start, int end) {
+            settled = 0;
+            if (start == end) {
+                return new int[]{start};
+            }
+            generation++;
+            if (generation == 0) {
+                Arrays.fill(stamp[0], 0);
+                Arrays.fill(stamp[1], 0);
+                generation = 1;
+            }
+            fringe[0].clear();
+            fringe[1].clear();
+            seed(0, start);
+            seed(1, end);
+
+            double best = graph.distanceAlongChain(start, end);
+            int meet = -1;
+            while (!fringe[0].isEmpty() || !fringe[1].isEmpty()) {
+                int dir = fringe[1].isEmpty()
+                        || (!fringe[0].isEmpty() && fringe[0].minKey() <= fringe[1].minKey())
+                        ? 0 : 1;
+                IndexedMinHeap heap = fringe[dir];
+                if (heap.minKey() >= best) {
+                    heap.clear();
+                    continue;
+                }
+                int v = heap.poll();
+                settled++;
+                double d = dist[dir][v];
+                int other = 1 - dir;
+                if (stamp[other][v] == generation && d + dist[other][v] < best) {
+                    best = d + dist[other][v];
+                    meet = v;
+                }
+                if (stalled(dir, v, d)) {
+                    continue;
+                }
+                for (int i = upOffsets[v]; i < upOffsets[v + 1]; i++) {
+                    int w = upTargets[i];
+                    double alt = d + upWeights[i];
+                    if (stamp[dir][w] != generation || alt < dist[dir][w]) {
+                        reach(dir, w, alt, upEdges[i]);
+                        if (stamp[other][w] == generation && alt + dist[other][w] < best) {
+                            best = alt + dist[other][w];
+                            meet = w;
+                        }
+                    }
+                }
+            }
+            if (best == Double.POSITIVE_INFINITY) {
+                return new int[0];
+            }
+            if (meet < 0) {
+                path.clear();
+                path.add(start);
+                graph.walkAlongChain(start, end, path);
+                return path.toArray();
+            }
+            return unpack(start, end, meet);
+        }
+
+        /** Start direction <code>dir</code> from the exits of node <code>v</code>. */
+        private void seed(int dir, int v) {
+            for (int i = 0; i < graph.exitCount(v); i++) {
+                int w = graph.exit(v, i);
+                double d = graph.exitDistance(v, i);
+                if (stamp[dir][w] != generation || d < dist[dir][w]) {
+                    reach(dir, w, d, ~i);
+                }
+            }
+        }
+
+        private void reach(int dir, int v, double d, int via) {
+            stamp[dir][v] = generation;
+            dist[dir][v] = d;
+            prevEdge[dir][v] = via;
+            fringe[dir].insertOrDecrease(v, d);
+        }
+
+        /** Whether some more important node already offers a shorter way to <code>v</code>. */
+        private boolean stalled(int dir, int v, double d) {
+            for (int i = upOffsets[v]; i < upOffsets[v + 1]; i++) {
+                int w = upTargets[i];
+                if (stamp[dir][w] == generation && dist[dir][w] + upWeights[i] < d) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private int[] unpack(int start, int end, int meet) {
+            path.clear();
+            path.add(start);
+            /* Forward edges are found walking down from meet, so collect them as (edge, from)
+             * pairs and unpack them in reverse. */
+            int pairs = 0;
+            int v = meet;
+            for (; prevEdge[0][v] >= 0; pairs++) {
+                int e = prevEdge[0][v];
+                v = otherEnd(e, v);
+                if (chain.length < 2 * pairs + 2) {
+                    chain = Arrays.copyOf(chain, chain.length * 2);
+                }
+                chain[2 * pairs] = e;
+                chain[2 * pairs + 1] = v;
+            }
+            graph.walkToExit(start, ~prevEdge[0][v], path);
+            for (int i = pairs - 1; i >= 0; i--) {
+                unpackEdge(chain[2 * i], chain[2 * i + 1]);
+            }
+            for (v = meet; prevEdge[1][v] >= 0; v = otherEnd(prevEdge[1][v], v)) {
+                unpackEdge(prevEdge[1][v], v);
+            }
+            graph.walkFromExit(end, ~prevEdge[1][v], path);
+            return path.toArray();
+        }
+
+        /** Append the nodes of edge <code>e</code> after <code>from</code>, expanding shortcuts. */
+        private void unpackEdge(int e, int from) {
+            int top = 0;
+            push(top++, e);
+            push(top++, from);
+            while (top > 0) {
+                int a = stack[--top];
+                int edge = stack[--top];
+                if (edgeFirst[edge] < 0) {
+                    if (a == edgeFrom[edge]) {
+                        graph.walkEdge(edgeSecond[edge], path);
+                    } else {
+                        graph.walkEdgeBackwards(edgeSecond[edge], path);
+                    }
+                    continue;
+                }
+                int first = edgeFirst[edge];
+                int second = edgeSecond[edge];
+                int mid = otherEnd(first, edgeFrom[edge]);
+                if (a == edgeFrom[edge]) {
+                    push(top++, second);
+                    push(top++, mid);
+                    push(top++, first);
+                    push(top++, a);
+                } else {
+                    push(top++, first);
+                    push(top++, mid);
+                    push(top++, second);
+                    push(top++, a);
+                }
+            }
+        }
+
+        private void push(int i, int value) {
+            if (i == stack.length) {
+                stack = Arrays.copyOf(stack, stack.length * 2);
+            }
+            stack[i] = value;
+        }
+
+    }
+
+    /**
+     * Contracts nodes in order of edge difference (shortcuts added minus edges removed) plus the
+     * number of already contracted neighbors, which spreads contraction evenly over the map.
+     * Priorities are updated lazily: a node is only contracted if its recomputed priority is
+     * still the smallest.
+     */
+    private static class Builder {
+        private final RoadGraph graph;
+        private final int n;
+        /* Growable edge table. */
+        private int[] from = new int[1024];
+        private int[] to = new int[1024];
+        private double[] weight = new double[1024];
+        private int[] first = new int[1024];
+        private int[] second = new int[1024];
+        private boolean[] superseded = new boolean[1024];
+        private int edgeCount;
+        /* Edges of the remaining, not yet contracted graph, by node. */
+        private final int[][] adjacent;
+        private final int[] adjacentCount;
+        private final boolean[] contracted;
+        private final int[] contractedNeighbors;
+        /* Witness search state. */
+        private final IndexedMinHeap witnessFringe;
+        private final double[] witnessDist;
+        private final int[] witnessStamp;
+        private int witnessGeneration;
+        /* Neighbors of the node being contracted. */
+        private int[] neighbor = new int[16];
+        private int[] neighborEdge = new int[16];
+
+        Builder(RoadGraph graph) {
+            this.graph = graph;
+            n = graph.junctionCount();
+            adjacent = new int[n][];
+            adjacentCount = new int[n];
+            contracted = new boolean[n];
+            contractedNeighbors = new int[n];
+            witnessFringe = new IndexedMinHeap(n);
+            witnessDist = new double[n];
+            witnessStamp = new int[n];
+            for (int v = 0; v < n; v++) {
+                adjacent[v] = new int[Math.max(2, graph.degree(v))];
+            }
+            /* Each chain once, from its lower end; loops never shorten a route. */
+            for (int v = 0; v < n; v++) {
+                for (int e = graph.firstEdge(v); e < graph.firstEdge(v + 1); e++) {
+                    if (graph.target(e) > v) {
+                        addEdge(v, graph.target(e), graph.weight(e), -1, e);
+                    }
+                }
+            }
+        }
+
+        ContractionHierarchy build() {
+            IndexedMinHeap order = new IndexedMinHeap(n);
+            for (int v = 0; v < n; v++) {
+                order.insertOrDecrease(v, priority(v));
+            }
+            int[] rank = new int[n];
+            int next = 0;
+            while (!order.isEmpty()) {
+                int v = order.poll();
+                double p = priority(v);
+                if (!order.isEmpty() && p > order.minKey()) {
+                    order.update(v, p);
+                    continue;
+                }
+                contract(v, false);
+                contracted[v] = true;
+                rank[v] = next++;
+                for (int i = 0; i < adjacentCount[v]; i++) {
+                    int u = otherEnd(adjacent[v][i], v);
+                    removeAdjacent(u, adjacent[v][i]);
+                    contractedNeighbors[u]++;
+                    order.update(u, priority(u));
+                }
+            }
+            return assemble(rank);
+        }
+
+        private double priority(int v) {
+            return contract(v, true) - adjacentCount[v] + contractedNeighbors[v];
+        }
+
+        /**
+         * Find the shortcuts needed to remove <code>v</code> from the remaining graph.
+         * @param simulate If true, only count them.
+         * @return The number of shortcuts.
+         */
+        private int contract(int v, boolean simulate) {
+            int k = adjacentCount[v];
+            if (neighbor.length < k) {
+                neighbor = new int[k];
+                neighborEdge = new int[k];
+            }
+            for (int i = 0; i < k; i++) {
+                neighborEdge[i] = adjacent[v][i];
+                neighbor[i] = otherEnd(adjacent[v][i], v);
+            }
+            int shortcuts = 0;
+            for (int i = 0; i < k - 1; i++) {
+                int u = neighbor[i];
+                double toU = weight[neighborEdge[i]];
+                double limit = 0;
+                for (int j = i + 1; j < k; j++) {
+                    limit = Math.max(limit, toU + weight[neighborEdge[j]]);
+                }
+                witnessSearch(u, v, limit);
+                for (int j = i + 1; j < k; j++) {
+                    int w = neighbor[j];
+                    double via = toU + weight[neighborEdge[j]];
+                    if (w == u || (witnessStamp[w] == witnessGeneration
+                            && witnessDist[w] <= via)) {
+                        continue;
+                    }
+                    shortcuts++;
+                    if (!simulate) {
+                        addShortcut(u, w, via, neighborEdge[i], neighborEdge[j]);
+                    }
+                }
+            }
+            return shortcuts;
+        }
+
+        /** Dijkstra from <code>source</code> around <code>skip</code>, up to <code>limit</code>. */
+        private void witnessSearch(int source, int skip, double limit) {
+            witnessGeneration++;
+            witnessFringe.clear();
+            witnessStamp[source] = witnessGeneration;
+            witnessDist[source] = 0.0;
+            witnessFringe.insertOrDecrease(source, 0.0);
+            int settled = 0;
+            while (!witnessFringe.isEmpty() && settled < WITNESS_SETTLE_LIMIT
+                    && witnessFringe.minKey() <= limit) {
+                int v = witnessFringe.poll();
+                settled++;
+                double d = witnessDist[v];
+                for (int i = 0; i < adjacentCount[v]; i++) {
+                    int e = adjacent[v][i];
+                    int w = otherEnd(e, v);
+                    if (w == skip) {
+                        continue;
+                    }
+                    double alt = d + weight[e];
+                    if (witnessStamp[w] != witnessGeneration || alt < witnessDist[w]) {
+                        witnessStamp[w] = witnessGeneration;
+                        witnessDist[w] = alt;
+                        witnessFringe.insertOrDecrease(w, alt);
+                    }
+                }
+            }
+        }
+
+        private void addShortcut(int u, int w, double via, int toU, int toW) {
+            for (int i = 0; i < adjacentCount[u]; i++) {
+                int e = adjacent[u][i];
+                if (otherEnd(e, u) == w) {
+                    if (weight[e] <= via) {
+                        return;
+                    }
+                    superseded[e] = true;
+                    removeAdjacent(u, e);
+                    removeAdjacent(w, e);
+                    break;
+                }
+            }
+            addEdge(u, w, via, toU, toW);
+        }
+
+        private void addEdge(int u, int w, double length, int firstEdge, int secondEdge) {
+            if (edgeCount == from.length) {
+                int capacity = edgeCount * 2;
+                from = Arrays.copyOf(from, capacity);
+                to = Arrays.copyOf(to, capacity);
+                weight = Arrays.copyOf(weight, capacity);
+                first = Arrays.copyOf(first, capacity);
+                second = Arrays.copyOf(second, capacity);
+                superseded = Arrays.copyOf(superseded, capacity);
+            }
+            int e = edgeCount++;
+            from[e] = u;
+            to[e] = w;
+            weight[e] = length;
+            first[e] = firstEdge;
+            second[e] = secondEdge;
+            addAdjacent(u, e);
+            addAdjacent(w, e);
+        }
+
+        private void addAdjacent(int v, int e) {
+            if (adjacentCount[v] == adjacent[v].length) {
+                adjacent[v] = Arrays.copyOf(adjacent[v], adjacent[v].length * 2);
+            }
+            adjacent[v][adjacentCount[v]++] = e;
+        }
+
+        private void removeAdjacent(int v, int e) {
+            for (int i = 0; i < adjacentCount[v]; i++) {
+                if (adjacent[v][i] == e) {
+                    adjacent[v][i] = adjacent[v][--adjacentCount[v]];
+                    return;
+                }
+            }
+        }
+
+        private int otherEnd(int e, int v) {
+            return from[e] == v ? to[e] : from[e];
+        }
+
+        /** Pack the edges that point to more important nodes into the upward adjacency. */
+        private ContractionHierarchy assemble(int[] rank) {
+            int[] upOffsets = new int[n + 1];
+            for (int e = 0; e < edgeCount; e++) {
+                if (!superseded[e]) {
+                    upOffsets[lower(e, rank) + 1]++;
+                }
+            }
+            for (int v = 0; v < n; v++) {
+                upOffsets[v + 1] += upOffsets[v];
+            }
+            int[] fill = Arrays.copyOf(upOffsets, n);
+            int[] upTargets = new int[upOffsets[n]];
+            double[] upWeights = new double[upOffsets[n]];
+            int[] upEdges = new int[upOffsets[n]];
+            for (int e = 0; e < edgeCount; e++) {
+                if (!superseded[e]) {
+                    int low = lower(e, rank);
+                    int i = fill[low]++;
+                    upTargets[i] = otherEnd(e, low);
+                    upWeights[i] = weight[e];
+                    upEdges[i] = e;
+                }
+            }
+            return new ContractionHierarchy(graph, fingerprint(graph),
+                    Arrays.copyOf(from, edgeCount), Arrays.copyOf(to, edgeCount),
+                    Arrays.copyOf(first, edgeCount), Arrays.copyOf(second, edgeCount),
+                    upOffsets, upTargets, upWeights, upEdges);
+        }
+
+        private int lower(int e, int[] rank) {
+            return rank[from[e]] < rank[to[e]] ? from[e] : to[e];
+        }
+    }
+}
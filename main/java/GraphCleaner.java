@@ -0,0 +1,271 @@
+import java.util.Arrays;
+
+/**
+ * Simplifies a RoadGraph fresh from its Builder for routing. Only the largest connected
+ * component is kept, since a route snapped onto a fragment it cannot leave would fail. Then
+ * every chain of nodes with exactly two neighbors is collapsed into one edge between the
+ * junctions at its ends, weighted by the chain's length, and its nodes become shape points so
+ * routes are still drawn and reported node by node. In a road network most nodes only shape
+ * the road between two intersections, so the graph routers search shrinks several times over.
+ * Junctions are numbered in order along a Hilbert curve over the map, and each chain's shape
+ * points after them in the same order, so nodes near each other on the map, and their edges,
+ * are near each other in memory as a search spreads out.
+ */
+public class GraphCleaner {
+    private static final int UNASSIGNED = Integer.MIN_VALUE;
+    /** Hilbert curve cells along each side of the ROOT box. */
+    private static final int HILBERT_ORDER = 15;
+
+    private final RoadGraph graph;
+    private final int n;
+    private final boolean[] junction;
+    /* The nodes, in their new order. */
+    private final int[] order;
+    private int numbered;
+    /* The chain each old edge leaving a junction follows, as in RoadGraph's edgeChains. */
+    private final int[] edgeChains;
+    private int[] chainShapes = new int[1024];
+    private int chainCount;
+
+    private GraphCleaner(RoadGraph graph) {
+        this.graph = graph;
+        n = graph.size();
+        junction = new boolean[n];
+        order = new int[n];
+        edgeChains = new int[graph.edgeCount()];
+        Arrays.fill(edgeChains, UNASSIGNED);
+    }
+
+    /**
+     * @param graph A graph from RoadGraph.Builder, whose nodes are all junctions.
+     * @return The largest component of <code>graph</code>, with its chains compressed.
+     */
+    public static RoadGraph clean(RoadGraph graph) {
+        return clean(graph, true);
+    }
+
+    /**
+     * @param graph A graph from RoadGraph.Builder, whose nodes are all junctions.
+     * @param hilbertOrder Whether to number junctions along a Hilbert curve, or else in the
+     *                     order of <code>graph</code>.
+     * @return The largest component of <code>graph</code>, with its chains compressed.
+     */
+    static RoadGraph clean(RoadGraph graph, boolean hilbertOrder) {
+        if (graph.junctionCount() != graph.size()) {
+            throw new IllegalArgumentException("Graph is already compressed");
+        }
+        return new GraphCleaner(graph).compress(largestComponent(graph), hilbertOrder);
+    }
+
+    /**
+     * @return The position along a Hilbert curve over the ROOT box of the cell holding a point;
+     * points outside the box are moved to its edge.
+     */
+    static long hilbertIndex(double lon, double lat) {
+        int side = 1 << HILBERT_ORDER;
+        int x = cell(lon, MapServer.ROOT_ULLON, MapServer.ROOT_LRLON, side);
+        int y = cell(lat, MapServer.ROOT_LRLAT, MapServer.ROOT_ULLAT, side);
+        long d = 0;
+        for (int s = side / 2; s > 0; s /= 2) {
+            int rx = (x & s) != 0 ? 1 : 0;
+            int ry = (y & s) != 0 ? 1 : 0;
+            d += (long) s * s * ((3 * rx) ^ ry);
+            /* Rotate the quadrant so the curve inside it runs the right way. */
+            if (ry == 0) {
+                if (rx == 1) {
+                    x = s - 1 - x;
+                    y = s - 1 - y;
+                }
+                int t = x;
+                x = y;
+                y = t;
+            }
+        }
+        return d;
+    }
+
+    private static int cell(double v, double min, double max, int side) {
+        int c = (int) ((v - min) / (max - min) * side);
+        return Math.max(0, Math.min(side - 1, c));
+    }
+
+    /** @return Which nodes are in the largest connected component; the first found on ties. */
+    static boolean[] largestComponent(RoadGraph graph) {
+        int n = graph.size();
+        int[] component = new int[n];
+        Arrays.fill(component, -1);
+        int[] stack = new int[n];
+        int largest = -1;
+        int largestSize = 0;
+        int components = 0;
+        for (int s = 0; s < n; s++) {
+            if (component[s] >= 0) {
+                continue;
+            }
+            int c = components++;
+            int size = 0;
+            int top = 0;
+            stack[top++] = s;
+            component[s] = c;
+            while (top > 0) {
+                int v = stack[--top];
+                size++;
+                for (int e = graph.firstEdge(v); e < graph.firstEdge(v + 1); e++) {
+                    int w = graph.target(e);
+                    if (component[w] < 0) {
+                        component[w] = c;
+                        stack[top++] = w;
+                    }
+                }
+            }
+            if (size > largestSize) {
+                largest = c;
+                largestSize = size;
+            }
+        }
+        boolean[] keep = new boolean[n];
+        for (int v = 0; v < n; v++) {
+            keep[v] = component[v] == largest;
+        }
+        return keep;
+    }
+
+    private RoadGraph compress(boolean[] keep, boolean hilbertOrder) {
+        for (int v = 0; v < n; v++) {
+            junction[v] = keep[v] && graph.degree(v) != 2;
+        }
+        /* A component that is one closed loop has no junction to start from; make one. */
+        boolean[] onChain = new boolean[n];
+        for (int v = 0; v < n; v++) {
+            if (junction[v]) {
+                for (int e = graph.firstEdge(v); e < graph.firstEdge(v + 1); e++) {
+                    markChain(v, graph.target(e), onChain);
+                }
+            }
+        }
+        for (int v = 0; v < n; v++) {
+            if (keep[v] && !junction[v] && !onChain[v]) {
+                junction[v] = true;
+                markChain(v, graph.target(graph.firstEdge(v)), onChain);
+            }
+        }
+
+        for (int v = 0; v < n; v++) {
+            if (junction[v]) {
+                number(v);
+            }
+        }
+        int junctionCount = numbered;
+        if (hilbertOrder) {
+            sortByHilbertIndex(junctionCount);
+        }
+        chainShapes[0] = junctionCount;
+        for (int i = 0; i < junctionCount; i++) {
+            int v = order[i];
+            for (int e = graph.firstEdge(v); e < graph.firstEdge(v + 1); e++) {
+                if (edgeChains[e] == UNASSIGNED) {
+                    walkChain(v, e);
+                }
+            }
+        }
+
+        long[] ids = new long[numbered];
+        double[] lons = new double[numbered];
+        double[] lats = new double[numbered];
+        for (int i = 0; i < numbered; i++) {
+            ids[i] = graph.id(order[i]);
+            lons[i] = graph.lon(order[i]);
+            lats[i] = graph.lat(order[i]);
+        }
+        int[] offsets = new int[junctionCount + 1];
+        for (int i = 0; i < junctionCount; i++) {
+            offsets[i + 1] = offsets[i] + graph.degree(order[i]);
+        }
+        int[] targets = new int[offsets[junctionCount]];
+        int[] chains = new int[offsets[junctionCount]];
+        int[] from = new int[chainCount];
+        int[] to = new int[chainCount];
+        for (int i = 0; i < junctionCount; i++) {
+            int v = order[i];
+            for (int e = graph.firstEdge(v); e < graph.firstEdge(v + 1); e++) {
+                if (edgeChains[e] >= 0) {
+                    from[edgeChains[e]] = i;
+                } else {
+                    to[~edgeChains[e]] = i;
+                }
+            }
+        }
+        for (int i = 0; i < junctionCount; i++) {
+            int v = order[i];
+            int k = offsets[i];
+            for (int e = graph.firstEdge(v); e < graph.firstEdge(v + 1); e++, k++) {
+                int c = edgeChains[e];
+                chains[k] = c;
+                targets[k] = c >= 0 ? to[c] : from[~c];
+            }
+        }
+        return new RoadGraph(ids, lons, lats, junctionCount, offsets, targets, chains,
+                Arrays.copyOf(chainShapes, chainCount + 1));
+    }
+
+    /** Reorder the first <code>count</code> numbered nodes by Hilbert index, ties kept in order. */
+    private void sortByHilbertIndex(int count) {
+        long[] keys = new long[count];
+        for (int i = 0; i < count; i++) {
+            int v = order[i];
+            keys[i] = hilbertIndex(graph.lon(v), graph.lat(v)) << 32 | i;
+        }
+        Arrays.sort(keys);
+        int[] sorted = new int[count];
+        for (int i = 0; i < count; i++) {
+            sorted[i] = order[(int) keys[i]];
+        }
+        System.arraycopy(sorted, 0, order, 0, count);
+    }
+
+    /** Mark the shape points of the chain leaving junction <code>v</code> towards first. */
+    private void markChain(int v, int first, boolean[] onChain) {
+        int prev = v;
+        int cur = first;
+        while (!junction[cur] && !onChain[cur]) {
+            onChain[cur] = true;
+            int next = otherNeighbor(cur, prev);
+            prev = cur;
+            cur = next;
+        }
+    }
+
+    /** The neighbor of shape point <code>v</code> other than <code>prev</code>. */
+    private int otherNeighbor(int v, int prev) {
+        int e = graph.firstEdge(v);
+        return graph.target(e) != prev ? graph.target(e) : graph.target(e + 1);
+    }
+
+    private void number(int v) {
+        order[numbered++] = v;
+    }
+
+    /** Number the chain leaving junction <code>v</code> by edge e, and its shape points. */
+    private void walkChain(int v, int e) {
+        int c = chainCount++;
+        int prev = v;
+        int cur = graph.target(e);
+        while (!junction[cur]) {
+            number(cur);
+            int next = otherNeighbor(cur, prev);
+            prev = cur;
+            cur = next;
+        }
+        edgeChains[e] = c;
+        for (int f = graph.firstEdge(cur); f < graph.firstEdge(cur + 1); f++) {
+            if (graph.target(f) == prev && edgeChains[f] == UNASSIGNED) {
+                edgeChains[f] = ~c;
+                break;
+            }
+        }
+        if (chainCount + 1 > chainShapes.length) {
+            chainShapes = Arrays.copyOf(chainShapes, chainShapes.length * 2);
+        }
+        chainShapes[chainCount] = numbered;
+    }
+}
@@ -1,7 +1,11 @@
 import org.xml.sax.SAXException;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.zip.GZIPInputStream;
 import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.parsers.SAXParser;
 import javax.xml.parsers.SAXParserFactory;
@@ -12,22 +16,118 @@ import javax.xml.parsers.SAXParserFactory;
  * @author Alan Yao
  */
 public class GraphDB {
+    /** Parse with the original SAX handler instead of OsmParser, for comparison. */
+    private static final boolean SAX_PARSER = "sax".equals(System.getProperty("bearmaps.parser"));
+    /** Named nodes in the order they were added to the Trie. */
+    private final ArrayList<GraphNode> locations = new ArrayList<>();
+    /** The road network used for routing. */
+    private RoadGraph graph;
+    /** Finds the road nodes nearest to a point. */
+    private KdTree nodeIndex;
+
     /**
-     * Example constructor shows how to create and start an XML parser.
-     * @param dbPath Path to the XML file to be parsed.
+     * Load the graph for <code>dbPath</code>, preferring its compiled snapshot when one exists.
+     * @param dbPath Path to the OSM file to be parsed: XML, optionally .gz or .bz2 compressed,
+     *               or .pbf.
+     * @see GraphSnapshot
      */
     public GraphDB(String dbPath) {
+        this(dbPath, true);
+    }
+
+    /**
+     * Example constructor shows how to create and start an XML parser.
+     * @param dbPath Path to the OSM file to be parsed: XML, optionally .gz or .bz2 compressed,
+     *               or .pbf. If there is no such file, the graph is empty.
+     * @param useSnapshot Whether an up-to-date compiled snapshot may be loaded instead.
+     * @throws IllegalStateException If the file exists but cannot be decoded.
+     */
+    GraphDB(String dbPath, boolean useSnapshot) {
         System.out.println(dbPath);
+        File snapshot = new File(GraphSnapshot.pathFor(dbPath));
+        if (useSnapshot && GraphSnapshot.isUsable(snapshot, new File(dbPath))) {
+            try {
+                GraphSnapshot.load(snapshot, this);
+                nodeIndex = new KdTree(graph);
+                return;
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
         try {
-            File inputFile = new File(dbPath);
-            SAXParserFactory factory = SAXParserFactory.newInstance();
-            SAXParser saxParser = factory.newSAXParser();
-            MapDBHandler mapHandler = new MapDBHandler(this);
-            saxParser.parse(inputFile, mapHandler);
+            RoadGraph.Builder roads = new RoadGraph.Builder();
+            if (dbPath.endsWith(".pbf")) {
+                try (InputStream in = new FileInputStream(dbPath)) {
+                    OsmPbfReader.parse(in, this, roads);
+                }
+            } else if (SAX_PARSER) {
+                SAXParserFactory factory = SAXParserFactory.newInstance();
+                SAXParser saxParser = factory.newSAXParser();
+                try (InputStream in = openXml(dbPath)) {
+                    saxParser.parse(in, new MapDBHandler(this, roads));
+                }
+            } else {
+                try (InputStream in = openXml(dbPath)) {
+                    OsmParser.parse(in, this, roads);
+                }
+            }
+            graph = roads.build();
         } catch (ParserConfigurationException | SAXException | IOException e) {
+            /* A file that is there but cannot be read would otherwise serve a map with no
+             * roads, which looks like a routing bug rather than a bad extract. */
+            if (new File(dbPath).isFile()) {
+                throw new IllegalStateException(dbPath + " could not be decoded", e);
+            }
             e.printStackTrace();
+            graph = new RoadGraph.Builder().build();
         }
         clean();
+        nodeIndex = new KdTree(graph);
+    }
+
+    /** Open OSM XML, decompressing .gz and .bz2 files as they are read. */
+    private static InputStream openXml(String dbPath) throws IOException {
+        InputStream in = new FileInputStream(dbPath);
+        try {
+            if (dbPath.endsWith(".gz")) {
+                return new GZIPInputStream(in, 1 << 16);
+            } else if (dbPath.endsWith(".bz2")) {
+                return new BZip2InputStream(in);
+            }
+            return in;
+        } catch (IOException e) {
+            in.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Record a named node and index it for search.
+     * @param node Node with a non-null name.
+     */
+    void addLocation(GraphNode node) {
+        locations.add(node);
+        MapServer.getTrie().addNode(node);
+        MapServer.getTokenIndex().addNode(node);
+    }
+
+    /** The road network, in compact form. */
+    public RoadGraph graph() {
+        return graph;
+    }
+
+    /** Spatial index over the nodes of graph(), for snapping points to the road network. */
+    public KdTree nodeIndex() {
+        return nodeIndex;
+    }
+
+    void setGraph(RoadGraph graph) {
+        this.graph = graph;
+    }
+
+    /** Named nodes in the order they were added. */
+    ArrayList<GraphNode> locations() {
+        return locations;
     }
 
     /**
@@ -40,11 +140,11 @@ public class GraphDB {
     }
 
     /**
-     *  Remove nodes with no connections from the graph.
-     *  While this does not guarantee that any two nodes in the remaining graph are connected,
-     *  we can reasonably assume this since typically roads are connected.
+     *  Simplify the parsed graph for routing: keep only its largest connected component, and
+     *  collapse chains of degree-2 shape nodes into single weighted edges between junctions.
+     *  @see GraphCleaner
      */
     private void clean() {
-
+        graph = GraphCleaner.clean(graph);
     }
 }
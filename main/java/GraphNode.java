@@ -1,29 +1,21 @@
-import java.util.ArrayList;
-
 /**
  * Created by JunSeong on 8/5/2016.
  */
 public class GraphNode {
-    private Long id;
+    private final long id;
     private String name;
-    private Double lon;
-    private Double lat;
-    private ArrayList<GraphNode> neighbor;
+    private final double lon;
+    private final double lat;
 
-    public GraphNode(Long id, Double lon, Double lat) {
+    public GraphNode(long id, double lon, double lat) {
         this(id, null, lon, lat);
     }
 
-    public GraphNode(Long id, String name, Double lon, Double lat) {
+    public GraphNode(long id, String name, double lon, double lat) {
         this.id = id;
         this.name = name;
         this.lon = lon;
         this.lat = lat;
-        this.neighbor = new ArrayList<>();
-    }
-
-    public ArrayList<GraphNode> getNeighbor() {
-        return neighbor;
     }
 
     public void setName(String name) {
@@ -34,22 +26,15 @@ public class GraphNode {
         return this.name;
     }
 
-    public Double getLon() {
+    public double getLon() {
         return lon;
     }
 
-    public Double getLat() {
+    public double getLat() {
         return lat;
     }
 
-    public Long id() {
+    public long id() {
         return this.id;
     }
-
-    public static void addItTo(GraphNode neighbor, GraphNode g) {
-        if (!g.neighbor.contains(neighbor)) {
-            g.neighbor.add(neighbor);
-        }
-    }
-
 }
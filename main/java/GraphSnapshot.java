@@ -0,0 +1,191 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compiled binary form of everything GraphDB pulls out of the OSM XML file: the road graph,
+ * node coordinates, and the named locations the Trie is built from. Compiling once with
+ * <code>java GraphSnapshot berkeley.osm</code> lets every later startup memory-map the result
+ * instead of SAX-parsing the whole extract. The mapping only speeds up reading: load copies
+ * every array onto the heap with bulk reads, so each server still keeps its own copy of the
+ * graph in memory.
+ * <p>
+ * The graph is stored cleaned and in Hilbert order, as GraphDB serves it.
+ * Layout (big-endian), mirroring the arrays of RoadGraph so they load with bulk copies: <br>
+ * header     -> int magic, int version, int nodeCount, int junctionCount, int edgeCount,
+ *               int chainCount, int locationCount <br>
+ * ids        -> nodeCount x long <br>
+ * lons, lats -> nodeCount x double each <br>
+ * offsets    -> (junctionCount + 1) x int <br>
+ * targets    -> edgeCount x int <br>
+ * edgeChains -> edgeCount x int <br>
+ * chainShapes -> (chainCount + 1) x int <br>
+ * locations  -> locationCount x (long id, double lon, double lat, int byteLength, UTF-8 name)
+ * </p>
+ */
+public class GraphSnapshot {
+    /** "BMAP" in ASCII. */
+    private static final int MAGIC = 0x424D4150;
+    /**
+     * Bump whenever the layout above or the node order changes; older files are then ignored and
+     * re-parsed.
+     */
+    static final int VERSION = 4;
+    private static final String EXTENSION = ".snapshot";
+
+    /**
+     * Compiles the OSM file given as the first argument (berkeley.osm by default) into its
+     * snapshot, which is written next to it.
+     */
+    public static void main(String[] args) throws IOException {
+        String dbPath = args.length > 0 ? args[0] : "berkeley.osm";
+        GraphDB g = new GraphDB(dbPath, false);
+        File out = new File(pathFor(dbPath));
+        write(out, g.graph(), g.locations());
+        System.out.println("Wrote " + out + " (" + out.length() + " bytes)");
+    }
+
+    /** The snapshot file that belongs to the OSM file at <code>dbPath</code>. */
+    static String pathFor(String dbPath) {
+        return dbPath + EXTENSION;
+    }
+
+    /**
+     * A snapshot is only trusted if it is at least as new as the OSM file it was compiled from,
+     * so editing the source data never silently serves stale roads.
+     */
+    static boolean isUsable(File snapshot, File source) {
+        return snapshot.isFile()
+                && (!source.exists() || snapshot.lastModified() >= source.lastModified());
+    }
+
+    /**
+     * Write the road graph and named locations to <code>file</code>.
+     * @param file Destination; overwritten if present.
+     * @param graph The road graph.
+     * @param locations Named nodes in the order they were added to the Trie.
+     */
+    static void write(File file, RoadGraph graph, List<GraphNode> locations) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(file)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(graph.size());
+            out.writeInt(graph.junctionCount());
+            out.writeInt(graph.edgeCount());
+            out.writeInt(graph.chainCount());
+            out.writeInt(locations.size());
+            for (long id : graph.ids()) {
+                out.writeLong(id);
+            }
+            for (double lon : graph.lons()) {
+                out.writeDouble(lon);
+            }
+            for (double lat : graph.lats()) {
+                out.writeDouble(lat);
+            }
+            for (int offset : graph.offsets()) {
+                out.writeInt(offset);
+            }
+            for (int target : graph.targets()) {
+                out.writeInt(target);
+            }
+            for (int chain : graph.edgeChains()) {
+                out.writeInt(chain);
+            }
+            for (int shape : graph.chainShapes()) {
+                out.writeInt(shape);
+            }
+            for (GraphNode location : locations) {
+                byte[] name = location.getName().getBytes(StandardCharsets.UTF_8);
+                out.writeLong(location.id());
+                out.writeDouble(location.getLon());
+                out.writeDouble(location.getLat());
+                out.writeInt(name.length);
+                out.write(name);
+            }
+        }
+    }
+
+    /**
+     * Memory-map <code>file</code> and load its road graph and locations into <code>g</code>.
+     * Nothing is published unless the whole file reads cleanly.
+     * @throws IOException If the file is unreadable, truncated, or of another version.
+     */
+    static void load(File file, GraphDB g) throws IOException {
+        MappedByteBuffer buf;
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        try {
+            if (buf.getInt() != MAGIC) {
+                throw new IOException(file + " is not a graph snapshot");
+            }
+            int version = buf.getInt();
+            if (version != VERSION) {
+                throw new IOException(file + " has version " + version + ", expected " + VERSION);
+            }
+            int nodeCount = buf.getInt();
+            int junctionCount = buf.getInt();
+            int edgeCount = buf.getInt();
+            int chainCount = buf.getInt();
+            int locationCount = buf.getInt();
+
+            long[] ids = new long[nodeCount];
+            buf.asLongBuffer().get(ids);
+            skip(buf, nodeCount * Long.BYTES);
+            double[] lons = new double[nodeCount];
+            buf.asDoubleBuffer().get(lons);
+            skip(buf, nodeCount * Double.BYTES);
+            double[] lats = new double[nodeCount];
+            buf.asDoubleBuffer().get(lats);
+            skip(buf, nodeCount * Double.BYTES);
+            int[] offsets = readInts(buf, junctionCount + 1);
+            int[] targets = readInts(buf, edgeCount);
+            int[] edgeChains = readInts(buf, edgeCount);
+            int[] chainShapes = readInts(buf, chainCount + 1);
+            if (offsets[junctionCount] != edgeCount || chainShapes[0] != junctionCount
+                    || chainShapes[chainCount] != nodeCount) {
+                throw new IOException(file + " has an inconsistent edge table");
+            }
+
+            ArrayList<GraphNode> locations = new ArrayList<>(locationCount);
+            for (int i = 0; i < locationCount; i++) {
+                long id = buf.getLong();
+                double lon = buf.getDouble();
+                double lat = buf.getDouble();
+                byte[] name = new byte[buf.getInt()];
+                buf.get(name);
+                locations.add(new GraphNode(id, new String(name, StandardCharsets.UTF_8),
+                        lon, lat));
+            }
+
+            g.setGraph(new RoadGraph(ids, lons, lats, junctionCount, offsets, targets,
+                    edgeChains, chainShapes));
+            for (GraphNode location : locations) {
+                g.addLocation(location);
+            }
+        } catch (RuntimeException e) {
+            throw new IOException(file + " is corrupt", e);
+        }
+    }
+
+    private static int[] readInts(MappedByteBuffer buf, int count) {
+        int[] values = new int[count];
+        buf.asIntBuffer().get(values);
+        skip(buf, count * Integer.BYTES);
+        return values;
+    }
+
+    private static void skip(MappedByteBuffer buf, int bytes) {
+        buf.position(buf.position() + bytes);
+    }
+}
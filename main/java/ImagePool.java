@@ -0,0 +1,86 @@
+import java.awt.image.BufferedImage;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Reusable <code>TYPE_INT_RGB</code> images bucketed by size, so rasters of recurring sizes do
+ * not allocate a new megapixel image per request. Images come back with whatever pixels they
+ * were released with; callers overwrite every pixel they use. Once the released images exceed
+ * a byte budget, those in the least recently used size are dropped first.
+ */
+public class ImagePool {
+    private final long maxBytes;
+    /** Idle images by packed (width, height), in access order. */
+    private final LinkedHashMap<Long, ArrayDeque<BufferedImage>> idle =
+            new LinkedHashMap<>(16, 0.75f, true);
+    private long bytes;
+    private long reuses;
+    private long allocations;
+
+    /**
+     * @param maxBytes Budget for pixel data of idle images.
+     */
+    public ImagePool(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    private static long key(int width, int height) {
+        return ((long) width << 32) | height;
+    }
+
+    /** @return An RGB image of the given size, reused if one is idle. */
+    public BufferedImage acquire(int width, int height) {
+        synchronized (this) {
+            ArrayDeque<BufferedImage> bucket = idle.get(key(width, height));
+            if (bucket != null && !bucket.isEmpty()) {
+                BufferedImage image = bucket.pop();
+                bytes -= LruTileCache.sizeOf(image);
+                reuses++;
+                return image;
+            }
+            allocations++;
+        }
+        return new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+    }
+
+    /** Hand <code>image</code> back for reuse. It must not be used by the caller afterwards. */
+    public synchronized void release(BufferedImage image) {
+        if (image == null || image.getType() != BufferedImage.TYPE_INT_RGB) {
+            return;
+        }
+        long size = LruTileCache.sizeOf(image);
+        if (size > maxBytes) {
+            return;
+        }
+        idle.computeIfAbsent(key(image.getWidth(), image.getHeight()), k -> new ArrayDeque<>())
+                .push(image);
+        bytes += size;
+        Iterator<Map.Entry<Long, ArrayDeque<BufferedImage>>> eldest = idle.entrySet().iterator();
+        while (bytes > maxBytes && eldest.hasNext()) {
+            ArrayDeque<BufferedImage> bucket = eldest.next().getValue();
+            while (bytes > maxBytes && !bucket.isEmpty()) {
+                bytes -= LruTileCache.sizeOf(bucket.removeLast());
+            }
+            if (bucket.isEmpty()) {
+                eldest.remove();
+            }
+        }
+    }
+
+    /** Number of acquires answered with an idle image. */
+    public synchronized long reuses() {
+        return reuses;
+    }
+
+    /** Number of acquires that had to allocate a new image. */
+    public synchronized long allocations() {
+        return allocations;
+    }
+
+    /** Bytes of pixel data held by idle images. */
+    public synchronized long weight() {
+        return bytes;
+    }
+}
@@ -0,0 +1,143 @@
+import java.util.Arrays;
+
+/**
+ * A d-ary min-heap over the int keys <code>0..capacity-1</code> (graph node indexes) with
+ * double priorities. Each index is in the heap at most once, and its position is tracked so the
+ * priority can be lowered in place. Nothing is allocated after construction.
+ */
+public class IndexedMinHeap {
+    /** Four children per node keeps the heap shallow and each sift touches one cache line. */
+    private static final int ARITY = 4;
+
+    private final int[] heap;
+    private final int[] position;
+    private final double[] priority;
+    private int size;
+
+    /**
+     * @param capacity One more than the largest index that will ever be inserted.
+     */
+    public IndexedMinHeap(int capacity) {
+        heap = new int[capacity];
+        position = new int[capacity];
+        priority = new double[capacity];
+        Arrays.fill(position, -1);
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean contains(int v) {
+        return position[v] >= 0;
+    }
+
+    /** Remove every index, in time proportional to the number still in the heap. */
+    public void clear() {
+        for (int i = 0; i < size; i++) {
+            position[heap[i]] = -1;
+        }
+        size = 0;
+    }
+
+    /**
+     * Insert <code>v</code>, or lower its priority if it is already present.
+     * Raising the priority of a present index is ignored.
+     */
+    public void insertOrDecrease(int v, double key) {
+        int i = position[v];
+        if (i < 0) {
+            i = size++;
+            heap[i] = v;
+            position[v] = i;
+        } else if (key >= priority[v]) {
+            return;
+        }
+        priority[v] = key;
+        siftUp(i);
+    }
+
+    /**
+     * Insert <code>v</code>, or move it to <code>key</code> whether that is lower or higher than
+     * its current priority.
+     */
+    public void update(int v, double key) {
+        int i = position[v];
+        if (i < 0 || key < priority[v]) {
+            insertOrDecrease(v, key);
+        } else {
+            priority[v] = key;
+            siftDown(i);
+        }
+    }
+
+    /** The smallest priority in the heap. Undefined when empty. */
+    public double minKey() {
+        return priority[heap[0]];
+    }
+
+    /** Remove and return the index with the smallest priority. Undefined when empty. */
+    public int poll() {
+        int min = heap[0];
+        position[min] = -1;
+        size--;
+        if (size > 0) {
+            int last = heap[size];
+            heap[0] = last;
+            position[last] = 0;
+            siftDown(0);
+        }
+        return min;
+    }
+
+    private void siftUp(int i) {
+        int v = heap[i];
+        double key = priority[v];
+        while (i > 0) {
+            int parent = (i - 1) / ARITY;
+            int p = heap[parent];
+            if (priority[p] <= key) {
+                break;
+            }
+            heap[i] = p;
+            position[p] = i;
+            i = parent;
+        }
+        heap[i] = v;
+        position[v] = i;
+    }
+
+    private void siftDown(int i) {
+        int v = heap[i];
+        double key = priority[v];
+        while (true) {
+            int first = i * ARITY + 1;
+            if (first >= size) {
+                break;
+            }
+            int last = Math.min(first + ARITY, size);
+            int best = first;
+            double bestKey = priority[heap[first]];
+            for (int c = first + 1; c < last; c++) {
+                double k = priority[heap[c]];
+                if (k < bestKey) {
+                    best = c;
+                    bestKey = k;
+                }
+            }
+            if (bestKey >= key) {
+                break;
+            }
+            int child = heap[best];
+            heap[i] = child;
+            position[child] = i;
+            i = best;
+        }
+        heap[i] = v;
+        position[v] = i;
+    }
+}
@@ -0,0 +1,171 @@
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Iterator;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.metadata.IIOMetadataNode;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+
+import org.w3c.dom.NodeList;
+
+/**
+ * Encodes rasters as JPEG through a pool of reusable ImageWriters, so a request neither looks
+ * up a writer through the service registry nor leaves one behind for the garbage collector to
+ * finalize. Safe to use from many threads: each encode borrows its own writer, and writers that
+ * do not fit back in the pool are disposed.
+ * <p>
+ * Quality, chroma subsampling and progressive output are fixed per encoder; a caller may ask
+ * for a different quality per image. Counts of encodes, time spent and bytes produced are kept
+ * for metrics.
+ * </p>
+ */
+public class JpegEncoder {
+    /** Quality the JDK writer uses when given no parameters, which rasters have always had. */
+    public static final float DEFAULT_QUALITY = 0.75f;
+    private static final String JPEG_METADATA_FORMAT = "javax_imageio_jpeg_image_1.0";
+
+    private final float quality;
+    /** Whether to halve chroma resolution both ways (4:2:0) rather than keep it (4:4:4). */
+    private final boolean subsampleChroma;
+    private final boolean progressive;
+    private final BlockingQueue<ImageWriter> idle;
+    private final AtomicLong encodes = new AtomicLong();
+    private final AtomicLong encodeNanos = new AtomicLong();
+    private final AtomicLong encodedBytes = new AtomicLong();
+
+    /**
+     * @param quality Default compression quality, from 0 to 1.
+     * @param subsampleChroma Encode chroma at 4:2:0 if true, 4:4:4 if false.
+     * @param progressive Write progressive rather than baseline JPEGs.
+     * @param poolSize Most idle writers kept for reuse.
+     */
+    public JpegEncoder(float quality, boolean subsampleChroma, boolean progressive,
+                       int poolSize) {
+        this.quality = clampQuality(quality);
+        this.subsampleChroma = subsampleChroma;
+        this.progressive = progressive;
+        this.idle = new ArrayBlockingQueue<>(Math.max(1, poolSize));
+    }
+
+    /**
+     * An encoder configured by -Dbearmaps.jpegQuality (default 0.75), -Dbearmaps.jpegChroma
+     * ("420", the default, or "444") and -Dbearmaps.jpegProgressive, pooling one writer per
+     * processor.
+     */
+    public static JpegEncoder fromSystemProperties() {
+        float quality = DEFAULT_QUALITY;
+        String configured = System.getProperty("bearmaps.jpegQuality");
+        if (configured != null) {
+            try {
+                quality = Float.parseFloat(configured);
+            } catch (NumberFormatException e) {
+                e.printStackTrace();
+            }
+        }
+        boolean subsample = !"444".equals(System.getProperty("bearmaps.jpegChroma", "420"));
+        return new JpegEncoder(quality, subsample, Boolean.getBoolean("bearmaps.jpegProgressive"),
+                Runtime.getRuntime().availableProcessors());
+    }
+
+    /** Limit <code>quality</code> to what the JPEG writer accepts. */
+    public static float clampQuality(float quality) {
+        return Math.max(0f, Math.min(1f, quality));
+    }
+
+    public float quality() {
+        return quality;
+    }
+
+    /** Encode <code>im</code> to <code>os</code> at this encoder's quality. */
+    public void encode(BufferedImage im, OutputStream os) throws IOException {
+        encode(im, os, quality);
+    }
+
+    /**
+     * Encode <code>im</code> to <code>os</code>.
+     * @param quality Compression quality for this image, from 0 to 1.
+     */
+    public void encode(BufferedImage im, OutputStream os, float quality) throws IOException {
+        long start = System.nanoTime();
+        ImageWriter writer = borrow();
+        MemoryCacheImageOutputStream out = new MemoryCacheImageOutputStream(os);
+        long length;
+        try {
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            param.setCompressionQuality(clampQuality(quality));
+            if (progressive) {
+                param.setProgressiveMode(ImageWriteParam.MODE_DEFAULT);
+            }
+            IIOMetadata metadata = subsampleChroma ? null : fullChroma(writer, im, param);
+            writer.setOutput(out);
+            writer.write(null, new IIOImage(im, null, metadata), param);
+            length = out.getStreamPosition();
+        } finally {
+            out.close();
+            release(writer);
+        }
+        encodes.incrementAndGet();
+        encodedBytes.addAndGet(length);
+        encodeNanos.addAndGet(System.nanoTime() - start);
+    }
+
+    /** Image metadata asking for every component at full resolution. */
+    private static IIOMetadata fullChroma(ImageWriter writer, BufferedImage im,
+                                          ImageWriteParam param) throws IOException {
+        IIOMetadata metadata =
+                writer.getDefaultImageMetadata(new ImageTypeSpecifier(im), param);
+        IIOMetadataNode tree = (IIOMetadataNode) metadata.getAsTree(JPEG_METADATA_FORMAT);
+        NodeList components = tree.getElementsByTagName("componentSpec");
+        for (int i = 0; i < components.getLength(); i++) {
+            IIOMetadataNode component = (IIOMetadataNode) components.item(i);
+            component.setAttribute("HsamplingFactor", "1");
+            component.setAttribute("VsamplingFactor", "1");
+        }
+        metadata.setFromTree(JPEG_METADATA_FORMAT, tree);
+        return metadata;
+    }
+
+    private ImageWriter borrow() {
+        ImageWriter writer = idle.poll();
+        if (writer != null) {
+            return writer;
+        }
+        Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName("jpg");
+        if (!writers.hasNext()) {
+            throw new IllegalStateException("No JPEG writer is installed.");
+        }
+        return writers.next();
+    }
+
+    private void release(ImageWriter writer) {
+        writer.reset();
+        if (!idle.offer(writer)) {
+            writer.dispose();
+        }
+    }
+
+    /** Number of images encoded. */
+    public long encodes() {
+        return encodes.get();
+    }
+
+    /** Total time spent encoding, in nanoseconds. */
+    public long encodeNanos() {
+        return encodeNanos.get();
+    }
+
+    /** Total bytes of JPEG produced. */
+    public long encodedBytes() {
+        return encodedBytes.get();
+    }
+}
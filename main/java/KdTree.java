@@ -0,0 +1,208 @@
+/**
+ * Static 2-d tree over the nodes of a RoadGraph, answering nearest and k-nearest node queries
+ * in logarithmic time. Distance is euclidean in (lon, lat) space, the same measure routes are
+ * snapped by.
+ * <p>
+ * The tree is implicit: the nodes of a subtree occupy a contiguous range of the arrays with
+ * their splitting node in the middle, levels alternately splitting on longitude and latitude.
+ * Coordinates are copied into tree order so a descent walks memory in order.
+ * </p>
+ */
+public class KdTree {
+    private final int[] nodes;
+    private final double[] lon;
+    private final double[] lat;
+
+    public KdTree(RoadGraph graph) {
+        int n = graph.size();
+        nodes = new int[n];
+        lon = new double[n];
+        lat = new double[n];
+        for (int i = 0; i < n; i++) {
+            nodes[i] = i;
+            lon[i] = graph.lon(i);
+            lat[i] = graph.lat(i);
+        }
+        build(0, n, true);
+    }
+
+    public int size() {
+        return nodes.length;
+    }
+
+    /**
+     * @return The index of the graph node closest to (queryLon, queryLat), preferring the
+     * lowest index among equally close nodes, or -1 if the graph is empty.
+     */
+    public int nearest(double queryLon, double queryLat) {
+        int[] result = kNearest(queryLon, queryLat, 1);
+        return result.length == 0 ? -1 : result[0];
+    }
+
+    /**
+     * @return The indexes of the <code>k</code> graph nodes closest to (queryLon, queryLat),
+     * nearest first. Fewer are returned if the graph is smaller than <code>k</code>.
+     */
+    public int[] kNearest(double queryLon, double queryLat, int k) {
+        Candidates found = new Candidates(Math.min(k, nodes.length));
+        if (found.capacity > 0) {
+            search(0, nodes.length, true, queryLon, queryLat, found);
+        }
+        return found.sorted();
+    }
+
+    private void search(int lo, int hi, boolean byLon, double queryLon, double queryLat,
+                        Candidates found) {
+        if (lo >= hi) {
+            return;
+        }
+        int mid = (lo + hi) >>> 1;
+        double dLon = queryLon - lon[mid];
+        double dLat = queryLat - lat[mid];
+        found.offer(nodes[mid], dLon * dLon + dLat * dLat);
+
+        double split = byLon ? dLon : dLat;
+        int nearLo = split < 0 ? lo : mid + 1;
+        int nearHi = split < 0 ? mid : hi;
+        search(nearLo, nearHi, !byLon, queryLon, queryLat, found);
+        /* The far side can only help if the splitting line is within the current k-th best. */
+        if (split * split <= found.bound()) {
+            search(split < 0 ? mid + 1 : lo, split < 0 ? hi : mid, !byLon, queryLon, queryLat,
+                    found);
+        }
+    }
+
+    /** Arrange [lo, hi) so its median by the current axis is in the middle, then recurse. */
+    private void build(int lo, int hi, boolean byLon) {
+        if (hi - lo <= 1) {
+            return;
+        }
+        int mid = (lo + hi) >>> 1;
+        select(lo, hi - 1, mid, byLon ? lon : lat);
+        build(lo, mid, !byLon);
+        build(mid + 1, hi, !byLon);
+    }
+
+    /** Quickselect on <code>key</code> so position k holds its order statistic. */
+    private void select(int left, int right, int k, double[] key) {
+        while (right > left) {
+            double pivot = key[(left + right) >>> 1];
+            int i = left;
+            int j = right;
+            while (i <= j) {
+                while (key[i] < pivot) {
+                    i++;
+                }
+                while (key[j] > pivot) {
+                    j--;
+                }
+                if (i <= j) {
+                    swap(i++, j--);
+                }
+            }
+            if (k <= j) {
+                right = j;
+            } else if (k >= i) {
+                left = i;
+            } else {
+                return;
+            }
+        }
+    }
+
+    private void swap(int i, int j) {
+        int node = nodes[i];
+        nodes[i] = nodes[j];
+        nodes[j] = node;
+        double x = lon[i];
+        lon[i] = lon[j];
+        lon[j] = x;
+        double y = lat[i];
+        lat[i] = lat[j];
+        lat[j] = y;
+    }
+
+    /** The best candidates so far, kept as a max-heap on (distance, node index). */
+    private static class Candidates {
+        private final int capacity;
+        private final int[] node;
+        private final double[] dist;
+        private int size;
+
+        Candidates(int capacity) {
+            this.capacity = capacity;
+            node = new int[capacity];
+            dist = new double[capacity];
+        }
+
+        /** Squared distance a new candidate has to beat once full. */
+        double bound() {
+            return size < capacity ? Double.POSITIVE_INFINITY : dist[0];
+        }
+
+        void offer(int v, double d) {
+            if (size < capacity) {
+                node[size] = v;
+                dist[size] = d;
+                siftUp(size++);
+            } else if (worse(node[0], dist[0], v, d)) {
+                node[0] = v;
+                dist[0] = d;
+                siftDown(0);
+            }
+        }
+
+        /** Empty the heap into an array, nearest first. */
+        int[] sorted() {
+            int[] result = new int[size];
+            while (size > 0) {
+                result[--size] = node[0];
+                node[0] = node[size];
+                dist[0] = dist[size];
+                siftDown(0);
+            }
+            return result;
+        }
+
+        /** Whether (v1, d1) ranks after (v2, d2). */
+        private static boolean worse(int v1, double d1, int v2, double d2) {
+            return d1 > d2 || (d1 == d2 && v1 > v2);
+        }
+
+        private void siftUp(int i) {
+            while (i > 0) {
+                int parent = (i - 1) / 2;
+                if (!worse(node[i], dist[i], node[parent], dist[parent])) {
+                    break;
+                }
+                exchange(i, parent);
+                i = parent;
+            }
+        }
+
+        private void siftDown(int i) {
+            while (true) {
+                int worst = i;
+                for (int c = 2 * i + 1; c <= 2 * i + 2 && c < size; c++) {
+                    if (worse(node[c], dist[c], node[worst], dist[worst])) {
+                        worst = c;
+                    }
+                }
+                if (worst == i) {
+                    return;
+                }
+                exchange(i, worst);
+                i = worst;
+            }
+        }
+
+        private void exchange(int i, int j) {
+            int v = node[i];
+            node[i] = node[j];
+            node[j] = v;
+            double d = dist[i];
+            dist[i] = dist[j];
+            dist[j] = d;
+        }
+    }
+}
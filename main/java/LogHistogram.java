@@ -0,0 +1,83 @@
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A lock-free histogram of non-negative longs with bounded relative error, in the style of
+ * HdrHistogram. Values below 2^SUB_BITS get a bucket each; above that, every power of two is
+ * split into 2^(SUB_BITS - 1) equal buckets, so a value is known to within about 3% whatever
+ * its magnitude. Recording is a couple of shifts and one atomic increment, cheap enough to time
+ * every stage of every request.
+ */
+public class LogHistogram {
+    private static final int SUB_BITS = 6;
+    private static final int HALF = 1 << (SUB_BITS - 1);
+    private static final int BUCKETS = index(Long.MAX_VALUE) + 1;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+
+    /** The bucket holding <code>value</code>. */
+    static int index(long value) {
+        int shift = (63 - Long.numberOfLeadingZeros(value)) - (SUB_BITS - 1);
+        if (shift <= 0) {
+            return (int) value;
+        }
+        return shift * HALF + (int) (value >>> shift);
+    }
+
+    /** The smallest value that falls in bucket <code>index</code>. */
+    static long lowerBound(int index) {
+        if (index < 2 * HALF) {
+            return index;
+        }
+        int shift = (index / HALF) - 1;
+        return (long) (index - shift * HALF) << shift;
+    }
+
+    /** Record one value; negative values are recorded as 0. */
+    public void record(long value) {
+        value = Math.max(0, value);
+        counts.incrementAndGet(index(value));
+        count.increment();
+        sum.add(value);
+    }
+
+    /** Number of values recorded. */
+    public long count() {
+        return count.sum();
+    }
+
+    /** Sum of the values recorded. */
+    public long sum() {
+        return sum.sum();
+    }
+
+    /**
+     * @param quantile Between 0 and 1.
+     * @return The midpoint of the bucket holding the value at <code>quantile</code>, or 0 if
+     * nothing has been recorded. Concurrent records may or may not be included.
+     */
+    public long valueAt(double quantile) {
+        long[] snapshot = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts.get(i);
+            total += snapshot[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(quantile * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) {
+                long low = lowerBound(i);
+                long high = i + 1 < BUCKETS ? lowerBound(i + 1) - 1 : Long.MAX_VALUE;
+                return low + (high - low) / 2;
+            }
+        }
+        return lowerBound(BUCKETS - 1);
+    }
+}
@@ -0,0 +1,135 @@
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * TileCache that evicts the least recently used tiles once the decoded pixel data it holds
+ * exceeds a byte budget. Tiles are loaded outside the lock, so a slow disk read never blocks
+ * hits on other tiles; two threads missing on the same tile may both load it.
+ */
+public class LruTileCache implements TileCache {
+    private final long maxBytes;
+    private final Loader loader;
+    private final Loader background;
+    /** In access order, so the eldest entry is the least recently used. */
+    private final LinkedHashMap<String, BufferedImage> tiles =
+            new LinkedHashMap<>(64, 0.75f, true);
+    private long bytes;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    /**
+     * @param maxBytes Budget for decoded pixel data.
+     * @param loader Reads tiles that are not cached.
+     */
+    public LruTileCache(long maxBytes, Loader loader) {
+        this(maxBytes, loader, loader);
+    }
+
+    /**
+     * @param maxBytes Budget for decoded pixel data.
+     * @param loader Reads tiles that are not cached when they are asked for.
+     * @param background Reads tiles that are prefetched.
+     */
+    public LruTileCache(long maxBytes, Loader loader, Loader background) {
+        this.maxBytes = maxBytes;
+        this.loader = loader;
+        this.background = background;
+    }
+
+    @Override
+    public BufferedImage get(String name) throws IOException {
+        synchronized (this) {
+            BufferedImage tile = tiles.get(name);
+            if (tile != null) {
+                hits++;
+                return tile;
+            }
+            misses++;
+        }
+        BufferedImage tile = loader.load(name);
+        if (tile == null) {
+            throw new IOException("No readable tile " + name);
+        }
+        put(name, tile);
+        return tile;
+    }
+
+    @Override
+    public void prefetch(String name) throws IOException {
+        if (contains(name)) {
+            return;
+        }
+        BufferedImage tile = background.load(name);
+        if (tile == null) {
+            throw new IOException("No readable tile " + name);
+        }
+        put(name, tile);
+    }
+
+    @Override
+    public synchronized BufferedImage getIfPresent(String name) {
+        BufferedImage tile = tiles.get(name);
+        if (tile != null) {
+            hits++;
+        }
+        return tile;
+    }
+
+    @Override
+    public synchronized boolean contains(String name) {
+        return tiles.containsKey(name);
+    }
+
+    @Override
+    public synchronized void clear() {
+        tiles.clear();
+        bytes = 0;
+    }
+
+    private synchronized void put(String name, BufferedImage tile) {
+        BufferedImage previous = tiles.put(name, tile);
+        if (previous != null) {
+            bytes -= sizeOf(previous);
+        }
+        bytes += sizeOf(tile);
+        Iterator<Map.Entry<String, BufferedImage>> eldest = tiles.entrySet().iterator();
+        while (bytes > maxBytes && eldest.hasNext()) {
+            BufferedImage evicted = eldest.next().getValue();
+            eldest.remove();
+            bytes -= sizeOf(evicted);
+            evictions++;
+        }
+    }
+
+    /** Bytes of pixel data behind <code>image</code>. */
+    static long sizeOf(BufferedImage image) {
+        DataBuffer data = image.getRaster().getDataBuffer();
+        return (long) data.getSize() * data.getNumBanks()
+                * DataBuffer.getDataTypeSize(data.getDataType()) / 8;
+    }
+
+    @Override
+    public synchronized long hits() {
+        return hits;
+    }
+
+    @Override
+    public synchronized long misses() {
+        return misses;
+    }
+
+    @Override
+    public synchronized long evictions() {
+        return evictions;
+    }
+
+    @Override
+    public synchronized long weight() {
+        return bytes;
+    }
+}
@@ -22,27 +22,25 @@ public class MapDBHandler extends DefaultHandler {
      * roads, but in practice we walk all over them with such impunity that we forget cars can
      * actually drive on them.
      */
-    private static final Set<String> ALLOWED_HIGHWAY_TYPES = new HashSet<>(Arrays.asList
+    static final Set<String> ALLOWED_HIGHWAY_TYPES = new HashSet<>(Arrays.asList
             ("motorway", "trunk", "primary", "secondary", "tertiary", "unclassified",
                     "residential", "living_street", "motorway_link", "trunk_link", "primary_link",
                     "secondary_link", "tertiary_link"));
     private String activeState = "";
     private String activeNode = "";
     private final GraphDB g;
-    private LinkedList<String> nodes = new LinkedList<>();
-    private static HashMap<String, GraphNode> allPossibleNodes = new HashMap<>();
-    private static HashMap<String, GraphNode> graphNodes = new HashMap<>();
+    private final RoadGraph.Builder roads;
+    private ArrayList<String> nodes = new ArrayList<>();
+    /** Every node in the file; dropped with the handler once the graph is built. */
+    private final HashMap<String, GraphNode> allPossibleNodes = new HashMap<>();
 
-    public static HashMap<String, GraphNode> allNodes() {
-        return graphNodes;
-    }
-
-    public static HashMap<String, GraphNode> getAllPossibleNodesNodes() {
-        return allPossibleNodes;
-    }
-
-    public MapDBHandler(GraphDB g) {
+    /**
+     * @param g The GraphDB that named locations are reported to.
+     * @param roads Receives every node and segment of the allowed highways.
+     */
+    public MapDBHandler(GraphDB g, RoadGraph.Builder roads) {
         this.g = g;
+        this.roads = roads;
     }
 
     /**
@@ -75,7 +73,7 @@ public class MapDBHandler extends DefaultHandler {
         } else if (activeState.equals("node") && qName.equals("tag")) { // if node and tag, do name
             if (attributes.getValue("k").equals("name")) {
                 allPossibleNodes.get(activeNode).setName(attributes.getValue("v"));
-                MapServer.getTrie().addNode(allPossibleNodes.get(activeNode));
+                g.addLocation(allPossibleNodes.get(activeNode));
             }
         } else if (activeState.equals("way") && qName.equals("nd")) { // in way, if nd add to nodes
             nodes.add(attributes.getValue("ref"));
@@ -84,17 +82,18 @@ public class MapDBHandler extends DefaultHandler {
             String v = attributes.getValue("v");
             if (k.equals("highway")) {
                 if (nodes.size() > 1 && ALLOWED_HIGHWAY_TYPES.contains(v)) {
-                    for (int i = 0; i < nodes.size(); i++) {
-                        if (!graphNodes.containsKey(nodes.get(i))) {
-                            graphNodes.put(nodes.get(i), allPossibleNodes.get(nodes.get(i)));
+                    int prev = -1;
+                    for (String ref : nodes) {
+                        GraphNode node = allPossibleNodes.get(ref);
+                        if (node == null) {  // refers outside the extract; break the road here
+                            prev = -1;
+                            continue;
                         }
-                    }
-
-                    for (int i = 1; i < nodes.size(); i++) {
-                        GraphNode prev = graphNodes.get(nodes.get(i - 1));
-                        GraphNode curr = graphNodes.get(nodes.get(i));
-                        GraphNode.addItTo(curr, prev);
-                        GraphNode.addItTo(prev, curr);
+                        int curr = roads.addNode(node.id(), node.getLon(), node.getLat());
+                        if (prev >= 0) {
+                            roads.addSegment(prev, curr);
+                        }
+                        prev = curr;
                     }
                 }
             }
@@ -117,7 +116,7 @@ public class MapDBHandler extends DefaultHandler {
         if (qName.equals("way") || qName.equals("node")) {
             activeState = "";
             activeNode = "";
-            nodes = new LinkedList<>();
+            nodes = new ArrayList<>();
         }
     }
 }
@@ -1,9 +1,12 @@
 import java.awt.*;
 import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.*;
 import java.util.List;
 
@@ -11,9 +14,9 @@ import java.util.List;
 import com.google.gson.Gson;
 
 import javax.imageio.ImageIO;
-import javax.imageio.ImageWriteParam;
-import javax.imageio.ImageWriter;
-import javax.imageio.stream.MemoryCacheImageOutputStream;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.MemoryCacheImageInputStream;
+import javax.servlet.http.HttpServletResponse;
 
 import static spark.Spark.*;
 
@@ -35,17 +38,64 @@ public class MapServer {
     public static final int TILE_SIZE = 256;
     /** HTTP failed response. */
     private static final int HALT_RESPONSE = 403;
+    /** HTTP response for a well-formed request for something that does not exist. */
+    private static final int NOT_FOUND_RESPONSE = 404;
     /** Route stroke information: typically roads are not more than 5px wide. */
     public static final float ROUTE_STROKE_WIDTH_PX = 5.0f;
     /** Route stroke information: Cyan with half transparency. */
     public static final Color ROUTE_STROKE_COLOR = new Color(108, 181, 230, 200);
     /** The tile images are in the IMG_ROOT folder. */
     private static final String IMG_ROOT = "img/";
+    /**
+     * Tiles packed by TileStore are read from here instead of img/ when the file exists; set
+     * with -Dbearmaps.tileStore.
+     */
+    private static final String TILE_STORE_PATH =
+            System.getProperty("bearmaps.tileStore", IMG_ROOT + "tiles.pack");
+    /** Budget for decoded tiles held in memory, set with -Dbearmaps.tileCacheBytes. */
+    private static final long TILE_CACHE_BYTES =
+            Long.getLong("bearmaps.tileCacheBytes", 256L * 1024 * 1024);
+    /** Budget for encoded route-free rasters, set with -Dbearmaps.rasterCacheBytes. */
+    private static final long RASTER_CACHE_BYTES =
+            Long.getLong("bearmaps.rasterCacheBytes", 64L * 1024 * 1024);
+    /** Threads shared by all requests for loading uncached tiles, -Dbearmaps.tileFetchThreads. */
+    private static final int TILE_FETCH_THREADS = Integer.getInteger("bearmaps.tileFetchThreads",
+            Runtime.getRuntime().availableProcessors());
+    /** Most tile loads one request may have in flight, -Dbearmaps.tileFetchParallelism. */
+    private static final int TILE_FETCH_PARALLELISM =
+            Integer.getInteger("bearmaps.tileFetchParallelism", 4);
+    /** Most tiles prefetched around each raster, -Dbearmaps.prefetchBudget; 0 turns it off. */
+    private static final int PREFETCH_BUDGET = Integer.getInteger("bearmaps.prefetchBudget", 32);
+    /**
+     * Prefetching pauses while more rasters than this are rendering at once, set with
+     * -Dbearmaps.prefetchMaxForeground.
+     */
+    private static final int PREFETCH_MAX_FOREGROUND =
+            Integer.getInteger("bearmaps.prefetchMaxForeground", 1);
+    /** Budget for idle raster images kept for reuse, set with -Dbearmaps.imagePoolBytes. */
+    private static final long IMAGE_POOL_BYTES =
+            Long.getLong("bearmaps.imagePoolBytes", 64L * 1024 * 1024);
     /**
      * The OSM XML file path. Downloaded from <a href="http://download.bbbike.org/osm/">here</a>
-     * using custom region selection.
+     * using custom region selection. Set -Dbearmaps.osmPath to serve another extract, which may
+     * also be .osm.gz, .osm.bz2 or .osm.pbf.
      **/
-    private static final String OSM_DB_PATH = "berkeley.osm";
+    private static final String OSM_DB_PATH = System.getProperty("bearmaps.osmPath",
+            "berkeley.osm");
+    /**
+     * Route with a Contraction Hierarchy instead of plain A*, when run with -Dbearmaps.ch=true.
+     * The hierarchy is loaded from next to the OSM file, or built and saved there on first use.
+     */
+    private static final boolean USE_CONTRACTION_HIERARCHY = Boolean.getBoolean("bearmaps.ch");
+    /** Most names /search suggests for a prefix, set with -Dbearmaps.autocompleteLimit. */
+    private static final int AUTOCOMPLETE_LIMIT =
+            Integer.getInteger("bearmaps.autocompleteLimit", 10);
+    /**
+     * Which names /search suggests first, set with -Dbearmaps.autocompleteRanking: "common"
+     * for names shared by the most locations, "shortest" or "alphabetical".
+     */
+    private static final String AUTOCOMPLETE_RANKING =
+            System.getProperty("bearmaps.autocompleteRanking", "common");
     /**
      * Each raster request to the server will have the following parameters
      * as keys in the params map accessible by,
@@ -64,14 +114,187 @@ public class MapServer {
      **/
     private static final String[] REQUIRED_ROUTE_REQUEST_PARAMS = {"start_lat", "start_lon",
         "end_lat", "end_lon"};
+    /**
+     * With mode=binary, /raster answers with the raster parameters only, plus an
+     * "image_url" -> String from which the JPEG itself can be streamed.
+     */
+    private static final String BINARY_MODE = "binary";
+    /**
+     * With mode=tiles, /raster answers with the raster parameters plus a "tiles" -> String[][]
+     * grid of tile names, row by row, and a "tile_url" -> String template, so the client can
+     * fetch the tiles from /tiles/{name} and lay them out itself.
+     */
+    private static final String TILES_MODE = "tiles";
+    /**
+     * A tile file may be replaced while the server runs, which gives it a new ETag, so clients
+     * keep single tiles for an hour and then revalidate them.
+     */
+    private static final String TILE_CACHE_CONTROL = "public, max-age=3600";
+    /** HTTP response telling a client its cached copy is current. */
+    private static final int NOT_MODIFIED_RESPONSE = 304;
+    /**
+     * Optional raster request parameter asking for a JPEG quality between 0 and 1 instead of
+     * the configured one. It is rounded to hundredths so cached rasters can be shared.
+     */
+    private static final String QUALITY_PARAM = "quality";
+    /**
+     * Optional search request parameter asking for suggestions within this many typos of the
+     * term, at most MAX_FUZZY_EDITS; given without a value, it allows one.
+     */
+    private static final String FUZZY_PARAM = "fuzzy";
+    /** Most typos a fuzzy search allows, beyond which nearly every name matches a prefix. */
+    private static final int MAX_FUZZY_EDITS = 2;
+    /**
+     * With words, /search answers with the locations whose names contain every word of the
+     * term anywhere, as full does for names starting with it.
+     */
+    private static final String WORDS_PARAM = "words";
+    /** Gson instances are thread-safe, so every response shares this one. */
+    private static final Gson GSON = new Gson();
     /* Define any static variables here. Do not define any instance variables of MapServer. */
     private static GraphDB g;
-    private static Trie trie = new Trie();
+    private static Trie trie = new Trie(Trie.ranking(AUTOCOMPLETE_RANKING), AUTOCOMPLETE_LIMIT);
+    private static TokenIndex words = new TokenIndex();
     private static QuadTree t = new QuadTree();
+    private static TileStore tileStore = openTileStore();
+    private static TileCache tiles = new LruTileCache(TILE_CACHE_BYTES,
+            name -> loadTile(name, true), name -> loadTile(name, false));
+    private static TileFetcher fetcher =
+            new TileFetcher(tiles, TILE_FETCH_THREADS, TILE_FETCH_PARALLELISM);
+    private static TilePrefetcher prefetcher =
+            new TilePrefetcher(tiles, t, PREFETCH_BUDGET, PREFETCH_MAX_FOREGROUND);
+    private static RasterCache rasterCache = new RasterCache(RASTER_CACHE_BYTES);
+    private static ImagePool images = new ImagePool(IMAGE_POOL_BYTES);
+    private static TileFiles tileFiles = new TileFiles(IMG_ROOT);
+    private static final JpegEncoder JPEG = JpegEncoder.fromSystemProperties();
+    private static ContractionHierarchy ch;
+    /** Routers keep per-node search state, so each request thread gets its own. */
+    private static final ThreadLocal<Router> ROUTERS = new ThreadLocal<>();
+    /** Tiles composed into rasters. */
+    private static final AtomicLong TILES_SERVED = new AtomicLong();
+    private static final Metrics METRICS = newMetrics();
+    /* Durations of each stage of request handling, in nanoseconds. */
+    private static final LogHistogram PLAN_TIMER = METRICS.stage("plan");
+    private static final LogHistogram TILE_READ_TIMER = METRICS.stage("tile_read");
+    private static final LogHistogram TILE_DECODE_TIMER = METRICS.stage("tile_decode");
+    private static final LogHistogram TILE_FETCH_TIMER = METRICS.stage("tile_fetch");
+    private static final LogHistogram COMPOSE_TIMER = METRICS.stage("compose");
+    private static final LogHistogram ROUTE_SEARCH_TIMER = METRICS.stage("route_search");
+    private static final LogHistogram ROUTE_DRAW_TIMER = METRICS.stage("route_draw");
+    private static final LogHistogram ENCODE_TIMER = METRICS.stage("encode");
+    private static final LogHistogram BASE64_TIMER = METRICS.stage("base64");
+    private static final LogHistogram JSON_TIMER = METRICS.stage("json");
+    private static final LogHistogram SETTLED_NODES = METRICS.summary("route_settled_nodes",
+            "Nodes settled by each route search.");
 
     public static Trie getTrie() {
         return trie;
     }
+
+    /** The index of every word in a location name. */
+    public static TokenIndex getTokenIndex() {
+        return words;
+    }
+
+    /** The cache decoded map tiles are read through. */
+    public static TileCache getTiles() {
+        return tiles;
+    }
+
+    /** Counters read straight from the caches and pools they describe, at scrape time. */
+    private static Metrics newMetrics() {
+        Metrics metrics = new Metrics();
+        metrics.counter("tiles_served_total", "Tiles composed into rasters.", TILES_SERVED::get);
+        metrics.counter("tile_cache_hits_total", "Tile lookups answered from memory.",
+                () -> tiles.hits());
+        metrics.counter("tile_cache_misses_total", "Tile lookups by requests that loaded the tile.",
+                () -> tiles.misses());
+        metrics.counter("tile_cache_evictions_total", "Tiles evicted to stay in budget.",
+                () -> tiles.evictions());
+        metrics.gauge("tile_cache_bytes", "Pixel bytes of cached tiles.", () -> tiles.weight());
+        metrics.counter("tile_prefetches_total", "Tiles loaded ahead of being asked for.",
+                () -> prefetcher.prefetched());
+        metrics.counter("tile_prefetch_cancellations_total",
+                "Prefetch runs stopped by a newer raster or foreground load.",
+                () -> prefetcher.cancelled());
+        metrics.counter("raster_cache_hits_total", "Rasters answered from the raster cache.",
+                () -> rasterCache.hits());
+        metrics.counter("raster_cache_misses_total", "Route-free rasters that were rendered.",
+                () -> rasterCache.misses());
+        metrics.gauge("raster_cache_bytes", "JPEG bytes of cached rasters.",
+                () -> rasterCache.weight());
+        metrics.counter("image_pool_reuses_total", "Raster images reused from the pool.",
+                () -> images.reuses());
+        metrics.counter("image_pool_allocations_total", "Raster images newly allocated.",
+                () -> images.allocations());
+        metrics.counter("jpeg_encodes_total", "Images encoded as JPEG.", () -> JPEG.encodes());
+        metrics.secondsCounter("jpeg_encode_seconds_total", "Time spent encoding JPEGs.",
+                () -> JPEG.encodeNanos());
+        metrics.counter("jpeg_encoded_bytes_total", "Bytes of JPEG produced.",
+                () -> JPEG.encodedBytes());
+        return metrics;
+    }
+
+    /** The metrics exposed on /metrics. */
+    public static Metrics getMetrics() {
+        return METRICS;
+    }
+
+    /** The packed tile store, or null if there is none or it cannot be read. */
+    private static TileStore openTileStore() {
+        File file = new File(TILE_STORE_PATH);
+        if (!file.isFile()) {
+            return null;
+        }
+        try {
+            return TileStore.open(file);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Read a tile, already in the RGB layout rasters are composed in: from the packed store if
+     * it has the tile, otherwise by decoding its PNG.
+     * @param timed Whether to record the read and decode stages. Prefetches are not timed, so
+     *              the stage timers only describe loads a request waited for.
+     */
+    private static BufferedImage loadTile(String name, boolean timed) throws IOException {
+        long start = System.nanoTime();
+        if (tileStore != null) {
+            BufferedImage packed = tileStore.read(name);
+            if (packed != null) {
+                if (timed) {
+                    TILE_READ_TIMER.record(System.nanoTime() - start);
+                }
+                return packed;
+            }
+        }
+        byte[] png = Files.readAllBytes(new File(IMG_ROOT + name + ".png").toPath());
+        long read = System.nanoTime();
+        BufferedImage tile;
+        try (ImageInputStream in = new MemoryCacheImageInputStream(
+                new ByteArrayInputStream(png))) {
+            tile = ImageIO.read(in);
+        }
+        tile = tile == null ? null : RasterComposer.toIntRgb(tile);
+        if (timed) {
+            TILE_READ_TIMER.record(read - start);
+            TILE_DECODE_TIMER.record(System.nanoTime() - read);
+        }
+        return tile;
+    }
+
+    /** The pool raster images are taken from and returned to. */
+    public static ImagePool getImagePool() {
+        return images;
+    }
+
+    /** The encoder rasters are written with. */
+    public static JpegEncoder getJpegEncoder() {
+        return JPEG;
+    }
     /**
      * Place any initialization statements that will be run before the server main loop here.
      * Do not place it in the main function. Do not place initialization code anywhere else.
@@ -79,6 +302,10 @@ public class MapServer {
      **/
     public static void initialize() {
         g = new GraphDB(OSM_DB_PATH);
+        if (USE_CONTRACTION_HIERARCHY) {
+            ch = ContractionHierarchy.loadOrBuild(g.graph(),
+                    ContractionHierarchy.pathFor(OSM_DB_PATH));
+        }
     }
 
     public static void main(String[] args) {    // given
@@ -99,45 +326,121 @@ public class MapServer {
                     getRequestParams(req, REQUIRED_RASTER_REQUEST_PARAMS);
             /* Required to have valid raster params */
             validateRequestParameters(rasterParams, REQUIRED_RASTER_REQUEST_PARAMS);
-            /* Create the Map for return parameters. */
-            Map<String, Object> rasteredImgParams = new HashMap<>();
-            /* getMapRaster() does almost all the work for this API call */
-            BufferedImage im = getMapRaster(rasterParams, rasteredImgParams);
             /* Check if we have routing parameters. */
             HashMap<String, Double> routeParams =
                     getRequestParams(req, REQUIRED_ROUTE_REQUEST_PARAMS);
-            /* If we do, draw the route too. */
-            if (hasRequestParameters(routeParams, REQUIRED_ROUTE_REQUEST_PARAMS)) {
-                findAndDrawRoute(routeParams, rasteredImgParams, im);
+            /* In binary mode, only describe the raster and point to where its image is. */
+            if (BINARY_MODE.equals(req.queryParams("mode"))) {
+                Map<String, Object> rasteredImgParams = new HashMap<>();
+                if (describeRaster(planRaster(rasterParams), rasteredImgParams)) {
+                    String url = "/raster.jpg?" + toQueryString(rasterParams, routeParams);
+                    if (req.queryParams(QUALITY_PARAM) != null) {
+                        url += "&" + QUALITY_PARAM + "=" + requestQuality(req);
+                    }
+                    rasteredImgParams.put("image_url", url);
+                }
+                return GSON.toJson(rasteredImgParams);
+            }
+            /* In tiles mode, only describe the raster and name the tiles it is made of. */
+            if (TILES_MODE.equals(req.queryParams("mode"))) {
+                Map<String, Object> rasteredImgParams = new HashMap<>();
+                RasterPlan plan = planRaster(rasterParams);
+                if (describeRaster(plan, rasteredImgParams)) {
+                    rasteredImgParams.put("tiles", tileGrid(plan));
+                    rasteredImgParams.put("tile_url", "/tiles/{name}");
+                }
+                return GSON.toJson(rasteredImgParams);
             }
+            /* renderRaster() does almost all the work for this API call */
+            RenderedRaster raster = renderRaster(rasterParams, routeParams, requestQuality(req));
+            Map<String, Object> rasteredImgParams = new HashMap<>(raster.params());
             /* On an image query success, add the image data to the response */
-            if (rasteredImgParams.containsKey("query_success")
-                    && (Boolean) rasteredImgParams.get("query_success")) {
-                ByteArrayOutputStream os = new ByteArrayOutputStream();
-                writeJpgToStream(im, os);
-                String encodedImage = Base64.getEncoder().encodeToString(os.toByteArray());
-                rasteredImgParams.put("b64_encoded_image_data", encodedImage);
-                os.flush();
-                os.close();
+            if (raster.succeeded()) {
+                long start = System.nanoTime();
+                rasteredImgParams.put("b64_encoded_image_data", raster.base64());
+                BASE64_TIMER.record(System.nanoTime() - start);
             }
             /* Encode response to Json */
-            Gson gson = new Gson();
-            return gson.toJson(rasteredImgParams);
+            long start = System.nanoTime();
+            String json = GSON.toJson(rasteredImgParams);
+            JSON_TIMER.record(System.nanoTime() - start);
+            return json;
+        });
+
+        /* Stream the rastered image of a raster request as a plain JPEG. */
+        get("/raster.jpg", (req, res) -> {
+            HashMap<String, Double> rasterParams =
+                    getRequestParams(req, REQUIRED_RASTER_REQUEST_PARAMS);
+            validateRequestParameters(rasterParams, REQUIRED_RASTER_REQUEST_PARAMS);
+            HashMap<String, Double> routeParams =
+                    getRequestParams(req, REQUIRED_ROUTE_REQUEST_PARAMS);
+            RenderedRaster raster = renderRaster(rasterParams, routeParams, requestQuality(req));
+            if (!raster.succeeded()) {
+                halt(NOT_FOUND_RESPONSE, "Query box does not intersect the map.");
+            }
+            HttpServletResponse raw = res.raw();
+            raw.setContentType("image/jpeg");
+            raw.setContentLength(raster.jpeg().length);
+            try (OutputStream os = raw.getOutputStream()) {
+                os.write(raster.jpeg());
+            }
+            return raw;
+        });
+
+        /* Serve one tile of the pyramid as its PNG, cacheable by browsers and proxies. */
+        get("/tiles/:name", (req, res) -> {
+            String name = req.params(":name");
+            if (name.endsWith(".png")) {
+                name = name.substring(0, name.length() - ".png".length());
+            }
+            File file = tileFiles.file(name);
+            if (file == null) {
+                halt(NOT_FOUND_RESPONSE, "No such tile.");
+            }
+            String etag = tileFiles.etag(name, file);
+            res.header("ETag", etag);
+            res.header("Cache-Control", TILE_CACHE_CONTROL);
+            if (TileFiles.matches(req.headers("If-None-Match"), etag)) {
+                res.status(NOT_MODIFIED_RESPONSE);
+                return "";
+            }
+            byte[] png = Files.readAllBytes(file.toPath());
+            HttpServletResponse raw = res.raw();
+            raw.setContentType("image/png");
+            raw.setContentLength(png.length);
+            try (OutputStream os = raw.getOutputStream()) {
+                os.write(png);
+            }
+            return raw;
+        });
+
+        /* Expose request stage timings and cache counters for Prometheus to scrape. */
+        get("/metrics", (req, res) -> {
+            res.type("text/plain; version=0.0.4; charset=utf-8");
+            return METRICS.scrape();
         });
 
         /* Define the API endpoint for search */
         get("/search", (req, res) -> {
             Set<String> reqParams = req.queryParams();
             String term = req.queryParams("term");
-            Gson gson = new Gson();
             /* Search for actual location data. */
             if (reqParams.contains("full")) {
                 List<Map<String, Object>> data = getLocations(term);
-                return gson.toJson(data);
+                return GSON.toJson(data);
+            } else if (reqParams.contains(WORDS_PARAM)) {
+                /* Search for locations with the words anywhere in their names. */
+                List<Map<String, Object>> data = getLocationsByWords(term);
+                return GSON.toJson(data);
+            } else if (reqParams.contains(FUZZY_PARAM)) {
+                /* Search for the best strings prefix matching despite typos. */
+                List<String> matches = getLocationsByFuzzyPrefix(term, requestEdits(req),
+                        AUTOCOMPLETE_LIMIT);
+                return GSON.toJson(matches);
             } else {
-                /* Search for prefix matching strings. */
-                List<String> matches = getLocationsByPrefix(term);
-                return gson.toJson(matches);
+                /* Search for the best prefix matching strings. */
+                List<String> matches = getLocationsByPrefix(term, AUTOCOMPLETE_LIMIT);
+                return GSON.toJson(matches);
             }
         });
 
@@ -191,20 +494,136 @@ public class MapServer {
         return params;
     }
 
+    /**
+     * The typos a fuzzy search request allows, limited to MAX_FUZZY_EDITS. Halts if the number
+     * given is not one.
+     */
+    private static int requestEdits(spark.Request req) {
+        String edits = req.queryParams(FUZZY_PARAM);
+        if (edits == null || edits.isEmpty()) {
+            return 1;
+        }
+        try {
+            return Math.max(0, Math.min(MAX_FUZZY_EDITS, Integer.parseInt(edits)));
+        } catch (NumberFormatException e) {
+            e.printStackTrace();
+            halt(HALT_RESPONSE, "Incorrect parameters - provide numbers.");
+        }
+        return 1;
+    }
+
+    /**
+     * The JPEG quality a raster request asks for, rounded to hundredths, or the configured
+     * quality if it does not ask. Halts if the hint is not a number.
+     */
+    private static float requestQuality(spark.Request req) {
+        String hint = req.queryParams(QUALITY_PARAM);
+        if (hint == null) {
+            return JPEG.quality();
+        }
+        try {
+            return Math.round(JpegEncoder.clampQuality(Float.parseFloat(hint)) * 100) / 100f;
+        } catch (NumberFormatException e) {
+            e.printStackTrace();
+            halt(HALT_RESPONSE, "Incorrect parameters - provide numbers.");
+        }
+        return JPEG.quality();
+    }
+
+    /** Select the tiles of a raster request, timed as the plan stage. */
+    private static RasterPlan planRaster(Map<String, Double> rasterParams) {
+        long start = System.nanoTime();
+        RasterPlan plan = t.plan(RasterQuery.fromParams(rasterParams));
+        PLAN_TIMER.record(System.nanoTime() - start);
+        return plan;
+    }
+
+    /**
+     * Rebuild the query string of a raster request from its parsed parameters, so only
+     * validated numbers are echoed back to the client.
+     */
+    private static String toQueryString(Map<String, Double> rasterParams,
+                                        Map<String, Double> routeParams) {
+        StringBuilder query = new StringBuilder();
+        for (Map<String, Double> params : Arrays.asList(rasterParams, routeParams)) {
+            for (Map.Entry<String, Double> param : params.entrySet()) {
+                if (query.length() > 0) {
+                    query.append('&');
+                }
+                query.append(param.getKey()).append('=').append(param.getValue());
+            }
+        }
+        return query.toString();
+    }
+
+    /**
+     * Raster, route and encode a raster request, then prefetch the tiles around it.
+     * @param rasterParams Validated raster request parameters.
+     * @param routeParams Route request parameters; the route is drawn only if all are present.
+     * @param quality JPEG quality to encode with, from 0 to 1.
+     */
+    private static RenderedRaster renderRaster(Map<String, Double> rasterParams,
+                                               HashMap<String, Double> routeParams,
+                                               float quality) {
+        RasterPlan plan = planRaster(rasterParams);
+        prefetcher.beginForeground();
+        try {
+            return renderPlan(plan, routeParams, quality);
+        } finally {
+            prefetcher.endForeground();
+            prefetcher.schedule(plan);
+        }
+    }
+
+    /**
+     * Raster, route and encode a planned raster request. Rasters without a route are served from
+     * and stored in the raster cache, since every query resolving to the same tiles yields the
+     * same image.
+     */
+    private static RenderedRaster renderPlan(RasterPlan plan, HashMap<String, Double> routeParams,
+                                             float quality) {
+        boolean routed = hasRequestParameters(routeParams, REQUIRED_ROUTE_REQUEST_PARAMS);
+        if (!routed) {
+            RenderedRaster cached = rasterCache.get(plan, quality);
+            if (cached != null) {
+                return cached;
+            }
+        }
+
+        Map<String, Object> rasteredImgParams = new HashMap<>();
+        BufferedImage im = getMapRaster(plan, rasteredImgParams);
+        if (routed) {
+            findAndDrawRoute(routeParams, rasteredImgParams, im);
+        }
+        byte[] jpeg = null;
+        if (im != null) {
+            ByteArrayOutputStream os = new ByteArrayOutputStream();
+            long start = System.nanoTime();
+            try {
+                JPEG.encode(im, os, quality);
+                jpeg = os.toByteArray();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            ENCODE_TIMER.record(System.nanoTime() - start);
+            images.release(im);
+        }
+        RenderedRaster raster = new RenderedRaster(rasteredImgParams, jpeg);
+        if (!routed && raster.succeeded()) {
+            rasterCache.put(plan, quality, raster);
+        }
+        return raster;
+    }
+
     /**
      * Write a <code>BufferedImage</code> to an <code>OutputStream</code>. The image is written as
-     * a lossy JPG, but with the highest quality possible.
+     * a lossy JPG at the configured quality, through the shared encoder pool.
      * @param im Image to be written.
      * @param os Stream to be written to.
      */
-    static void writeJpgToStream(BufferedImage im, OutputStream os) {   // given
-        ImageWriter writer = ImageIO.getImageWritersByFormatName("jpg").next();
-        ImageWriteParam param = writer.getDefaultWriteParam();
-        param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
-        param.setCompressionQuality(1.0F); // Highest quality of jpg possible
-        writer.setOutput(new MemoryCacheImageOutputStream(os));
+    static void writeJpgToStream(BufferedImage im, OutputStream os) {
         try {
-            writer.write(im);
+            JPEG.encode(im, os);
         } catch (IOException e) {
             e.printStackTrace();
         }
@@ -238,66 +657,91 @@ public class MapServer {
      * "depth"         -> Integer, the 1-indexed quadtree depth of the nodes of the rastered image.
      * Can also be interpreted as the length of the numbers in the image string. <br>
      * "query_success" -> Boolean, whether an image was successfully rastered. <br>
-     * @return a <code>BufferedImage</code>, which is the rastered result.
+     * @return a <code>BufferedImage</code>, which is the rastered result, or null if the query
+     * box does not intersect the map.
      * @see #REQUIRED_RASTER_REQUEST_PARAMS
      */
     public static BufferedImage getMapRaster(Map<String, Double> inputParams,
                                              Map<String, Object> rasteredImageParams) {
+        return getMapRaster(planRaster(inputParams), rasteredImageParams);
+    }
 
-        ArrayList<QTreeNode> images = t.getImg(inputParams);
-
-        int numImages = images.size();
-        int depth;
-        if (images.get(0).getName().equals("root")) {
-            depth = 0;
-        } else {
-            depth = images.get(0).getName().length();
+    /**
+     * Raster the tiles of an already planned query.
+     * @see #getMapRaster(Map, Map)
+     */
+    private static BufferedImage getMapRaster(RasterPlan plan,
+                                              Map<String, Object> rasteredImageParams) {
+        if (!describeRaster(plan, rasteredImageParams)) {
+            return null;
         }
 
-        double rasterUlLon = images.get(0).getULLON();
-        double rasterUlLat = images.get(0).getULLAT();
-        double rasterLrLon = images.get(numImages - 1).getLRLON();
-        double rasterLrLat = images.get(numImages - 1).getLRLAT();
-
-        int xTile = ((int) Math.round(((rasterLrLon - rasterUlLon)
-                / ((ROOT_LRLON - ROOT_ULLON) / Math.pow(2, depth)))));
-        int yTile = numImages / xTile;
-
-        double xTileDist = (rasterLrLon - rasterUlLon) / xTile;
-        double yTileDist = (rasterUlLat - rasterLrLat) / yTile;
-
-        rasteredImageParams.put("raster_width", xTile * 256);
-        rasteredImageParams.put("raster_height", yTile * 256);
-        rasteredImageParams.put("depth", depth);
-        rasteredImageParams.put("raster_ul_lon", rasterUlLon);
-        rasteredImageParams.put("raster_ul_lat", rasterUlLat);
-        rasteredImageParams.put("raster_lr_lon", rasterLrLon);
-        rasteredImageParams.put("raster_lr_lat", rasterLrLat);
-        rasteredImageParams.put("query_success", true);
+        int xTile = plan.columns();
+        int yTile = plan.rows();
 
-        BufferedImage result
-                = new BufferedImage(xTile * 256, yTile * 256, BufferedImage.TYPE_INT_RGB);
-        Graphics bigImage = result.getGraphics();
+        long start = System.nanoTime();
+        /* A pooled image still holds an old raster, so every cell is either copied or cleared. */
+        BufferedImage result = images.acquire(xTile * TILE_SIZE, yTile * TILE_SIZE);
 
-        for (QTreeNode image : images) {
-            try {
-                BufferedImage bi;
-                if (image.getBufferedImage() == null) {
-                    bi = ImageIO.read(new File("img/" + image.getName() + ".png"));
-                    image.setImage(bi);
-                } else {
-                    bi = image.getBufferedImage();
-                }
-                int x = (int) Math.round((image.getULLON() - rasterUlLon) / xTileDist);
-                int y = (int) Math.round((rasterUlLat - image.getULLAT()) / yTileDist);
-                bigImage.drawImage(bi, x * 256, y * 256, null);
-            } catch (IOException e) {
-                System.out.println(image.getName());
-            }
+        List<QTreeNode> planned = plan.tiles();
+        List<String> names = new ArrayList<>(planned.size());
+        for (QTreeNode image : planned) {
+            names.add(image.getName());
         }
+        long fetchStart = System.nanoTime();
+        /* Time spent copying tiles, on this thread, while the rest are still loading. */
+        long[] copying = new long[1];
+        /* Tiles arrive in whatever order they finish loading; each knows its own cell. */
+        fetcher.fetch(names, (i, tile) -> {
+            long copyStart = System.nanoTime();
+            int x = (i % xTile) * TILE_SIZE;
+            int y = (i / xTile) * TILE_SIZE;
+            if (tile != null) {
+                RasterComposer.copy(tile, result, x, y, TILE_SIZE);
+            } else {
+                System.out.println(names.get(i));
+                RasterComposer.clear(result, x, y, TILE_SIZE, TILE_SIZE);
+            }
+            copying[0] += System.nanoTime() - copyStart;
+        });
+        TILES_SERVED.addAndGet(names.size());
+        TILE_FETCH_TIMER.record(System.nanoTime() - fetchStart - copying[0]);
+        COMPOSE_TIMER.record(fetchStart - start + copying[0]);
         return result;
     }
 
+    /** The names of the tiles of <code>plan</code>, one array per row of tiles. */
+    private static String[][] tileGrid(RasterPlan plan) {
+        String[][] grid = new String[plan.rows()][plan.columns()];
+        List<QTreeNode> planned = plan.tiles();
+        for (int i = 0; i < planned.size(); i++) {
+            grid[i / plan.columns()][i % plan.columns()] = planned.get(i).getName();
+        }
+        return grid;
+    }
+
+    /**
+     * Fill in the raster response parameters of a planned query without rastering anything.
+     * @return Whether the query succeeded.
+     * @see #getMapRaster(Map, Map)
+     */
+    private static boolean describeRaster(RasterPlan plan,
+                                          Map<String, Object> rasteredImageParams) {
+        if (plan.isEmpty()) {
+            rasteredImageParams.put("query_success", false);
+            return false;
+        }
+        rasteredImageParams.put("raster_width", plan.columns() * TILE_SIZE);
+        rasteredImageParams.put("raster_height", plan.rows() * TILE_SIZE);
+        rasteredImageParams.put("depth", plan.depth());
+        rasteredImageParams.put("raster_ul_lon", plan.ullon());
+        rasteredImageParams.put("raster_ul_lat", plan.ullat());
+        rasteredImageParams.put("raster_lr_lon", plan.lrlon());
+        rasteredImageParams.put("raster_lr_lat", plan.lrlat());
+        rasteredImageParams.put("query_success", true);
+        return true;
+    }
+
     /**
      * Searches for the shortest route satisfying the input request parameters, and returns a
      * <code>List</code> of the route's node ids. <br>
@@ -316,61 +760,22 @@ public class MapServer {
     public static List<Long> findAndDrawRoute(Map<String, Double> routeParams,
                                               Map<String, Object> rasterImageParams,
                                               BufferedImage im) {
-        Double startLon = routeParams.get("start_lon");
-        Double startLat = routeParams.get("start_lat");
-        Double endLon = routeParams.get("end_lon");
-        Double endLat = routeParams.get("end_lat");
-        String[] startEnd = findStartAndEnd(startLon, startLat, endLon, endLat);
-        GraphNode startNode = MapDBHandler.allNodes().get(startEnd[0]);
-        GraphNode endNode = MapDBHandler.allNodes().get(startEnd[1]);
-        Long endId = endNode.id();
-
-        PriorityQueue<HashMap<String, Object>> fringe =
-                new PriorityQueue<>((o1, o2) ->
-                        ((Double) o1.get("dist")).compareTo((Double) o2.get("dist")));
-        HashMap<Long, HashMap<String, Object>> distance = new HashMap<>();
-        HashMap<String, Object> startNodeMap = new HashMap<>();
-        startNodeMap.put("node", startNode);
-        startNodeMap.put("dist", 0.0);
-        fringe.add(startNodeMap);
-        distance.put(startNode.id(), startNodeMap);
-
-        while (!fringe.isEmpty()) {
-            GraphNode next = (GraphNode) fringe.poll().get("node");
-            if (next.id().equals(endId)) {
-                break;
-            }
-
-            Double dist = (Double) distance.get(next.id()).get("dist");
-            ArrayList<GraphNode> neighbors = next.getNeighbor();
-            for (GraphNode node : neighbors) {
-                if (!distance.containsKey(node.id())) {
-                    HashMap<String, Object> currMap = new HashMap<>();
-                    currMap.put("node", node);
-                    currMap.put("dist", dist
-                            + h(node.getLon(), node.getLat(), next.getLon(), next.getLat()));
-                    currMap.put("prev", next.id());
-                    fringe.add(currMap);
-                    distance.put(node.id(), currMap);
-                } else {
-                    if (((Double) distance.get(node.id()).get("dist"))
-                            > dist + h(node.getLon(), node.getLat(),
-                            next.getLon(), next.getLat())) {
-                        distance.get(node.id()).put("dist", dist
-                                + h(node.getLon(), node.getLat(), next.getLon(), next.getLat()));
-                        distance.get(node.id()).put("prev", next.id());
-                    }
-                }
-            }
-        }
-
-        ArrayList<Long> route = new ArrayList<>();
-        route.add(endNode.id());
-        while (!route.get(0).equals(startNode.id())) {
-            route.add(0, (Long) distance.get(route.get(0)).get("prev"));
+        long start = System.nanoTime();
+        RoadGraph graph = g.graph();
+        int[] startEnd = findStartAndEnd(routeParams.get("start_lon"),
+                routeParams.get("start_lat"), routeParams.get("end_lon"),
+                routeParams.get("end_lat"));
+        Router router = router(graph);
+        int[] path = router.route(startEnd[0], startEnd[1]);
+        SETTLED_NODES.record(router.settledCount());
+        ArrayList<Long> route = new ArrayList<>(path.length);
+        for (int v : path) {
+            route.add(graph.id(v));
         }
+        long searched = System.nanoTime();
+        ROUTE_SEARCH_TIMER.record(searched - start);
 
-        if (route.size() != 0 && im != null) {
+        if (path.length != 0 && im != null) {
             Graphics graphics = im.getGraphics();
             int column = (int) rasterImageParams.get("raster_width");
             int row = (int) rasterImageParams.get("raster_height");
@@ -379,24 +784,25 @@ public class MapServer {
             double rasterLrlon = (Double) rasterImageParams.get("raster_lr_lon");
             double rasterLrlat = (Double) rasterImageParams.get("raster_lr_lat");
 
-            for (int i = 0; i < route.size() - 1; i++) {
+            for (int i = 0; i < path.length - 1; i++) {
                 ((Graphics2D) graphics).setStroke(
                         new BasicStroke(MapServer.ROUTE_STROKE_WIDTH_PX,
                         BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND));
                 graphics.setColor(ROUTE_STROKE_COLOR);
-                GraphNode fromNode = MapDBHandler.allNodes().get(route.get(i).toString());
-                GraphNode toNode = MapDBHandler.allNodes().get(route.get(i + 1).toString());
+                int fromNode = path[i];
+                int toNode = path[i + 1];
 
                 int x1 = (int) (Math.round(column)
-                        * ((fromNode.getLon() - rasterUllon) / (rasterLrlon - rasterUllon)));
+                        * ((graph.lon(fromNode) - rasterUllon) / (rasterLrlon - rasterUllon)));
                 int y1 = (int) (Math.round(row)
-                        * ((rasterUllat - fromNode.getLat()) / (rasterUllat - rasterLrlat)));
+                        * ((rasterUllat - graph.lat(fromNode)) / (rasterUllat - rasterLrlat)));
                 int x2 = (int) (Math.round(column)
-                        * ((toNode.getLon() - rasterUllon) / (rasterLrlon - rasterUllon)));
+                        * ((graph.lon(toNode) - rasterUllon) / (rasterLrlon - rasterUllon)));
                 int y2 = (int) (Math.round(row)
-                        * ((rasterUllat - toNode.getLat()) / (rasterUllat - rasterLrlat)));
+                        * ((rasterUllat - graph.lat(toNode)) / (rasterUllat - rasterLrlat)));
                 graphics.drawLine(x1, y1, x2, y2);
             }
+            ROUTE_DRAW_TIMER.record(System.nanoTime() - searched);
         }
 
 //        try {
@@ -409,26 +815,28 @@ public class MapServer {
         return route;
     }
 
-    public static String[] findStartAndEnd(
-            Double startLon, Double startLat, Double endLon, Double endLat) {
-        Double startDis = Double.POSITIVE_INFINITY;
-        Double endDis = Double.POSITIVE_INFINITY;
-        String startId = "";
-        String endId = "";
-        Map<String, GraphNode> nodes = MapDBHandler.allNodes();
+    /**
+     * Find the road graph nodes closest to the start and end points of a route.
+     * @return The node indexes of the start and end nodes, in that order.
+     */
+    public static int[] findStartAndEnd(
+            double startLon, double startLat, double endLon, double endLat) {
+        KdTree index = g.nodeIndex();
+        return new int[]{index.nearest(startLon, startLat), index.nearest(endLon, endLat)};
+    }
 
-        for (String id: nodes.keySet()) {
-            if (startDis > h(startLon, startLat, nodes.get(id).getLon(), nodes.get(id).getLat())) {
-                startDis = h(startLon, startLat, nodes.get(id).getLon(), nodes.get(id).getLat());
-                startId = id;
-            }
-            if (endDis > h(endLon, endLat, nodes.get(id).getLon(), nodes.get(id).getLat())) {
-                endDis = h(endLon, endLat, nodes.get(id).getLon(), nodes.get(id).getLat());
-                endId = id;
+    /** This thread's router for <code>graph</code>. */
+    private static Router router(RoadGraph graph) {
+        Router router = ROUTERS.get();
+        if (router == null || router.graph() != graph) {
+            if (ch != null && ch.graph() == graph) {
+                router = ch.newQuery();
+            } else {
+                router = new AStarRouter(graph);
             }
+            ROUTERS.set(router);
         }
-
-        return new String[]{startId, endId};
+        return router;
     }
 
     public static double h(double lon1, double lat1, double lon2, double lat2) {
@@ -443,9 +851,43 @@ public class MapServer {
      * cleaned <code>prefix</code>.
      */
     public static List<String> getLocationsByPrefix(String prefix) {    // for proj3
-        List<GraphNode> list = trie.getWordsWithPrefix(GraphDB.cleanString(prefix));
-        ArrayList<String> collecting = new ArrayList<>();
-        for (GraphNode node: list) {
+        return names(trie.getWordsWithPrefix(GraphDB.cleanString(prefix)));
+    }
+
+    /**
+     * Collect the names of the best OSM locations that prefix-match the query string, in time
+     * proportional to the length of the prefix and <code>limit</code>.
+     * @param prefix Prefix string to be searched for. Could be any case, with our without
+     *               punctuation.
+     * @param limit Most names to return.
+     * @return A <code>List</code> of up to <code>limit</code> full names of locations whose
+     * cleaned name matches the cleaned <code>prefix</code>, best first by the configured
+     * -Dbearmaps.autocompleteRanking.
+     */
+    public static List<String> getLocationsByPrefix(String prefix, int limit) {
+        return names(trie.getTopWithPrefix(GraphDB.cleanString(prefix), limit));
+    }
+
+    /**
+     * Collect the names of the best OSM locations that prefix-match the query string with up
+     * to <code>maxEdits</code> typos, closest first.
+     * @param prefix Prefix string to be searched for. Could be any case, with our without
+     *               punctuation.
+     * @param maxEdits Most characters of the cleaned prefix that may be inserted, deleted or
+     *                 replaced.
+     * @param limit Most names to return.
+     * @return A <code>List</code> of up to <code>limit</code> full names of locations whose
+     * cleaned name starts within <code>maxEdits</code> edits of the cleaned <code>prefix</code>,
+     * those needing fewer edits first, then by the configured -Dbearmaps.autocompleteRanking.
+     */
+    public static List<String> getLocationsByFuzzyPrefix(String prefix, int maxEdits,
+                                                         int limit) {
+        return names(trie.getFuzzyWithPrefix(GraphDB.cleanString(prefix), maxEdits, limit));
+    }
+
+    private static List<String> names(List<GraphNode> nodes) {
+        ArrayList<String> collecting = new ArrayList<>(nodes.size());
+        for (GraphNode node: nodes) {
             collecting.add(node.getName());
         }
         return collecting;
@@ -464,7 +906,21 @@ public class MapServer {
      * "id" -> Number, The id of the node. <br>
      */
     public static List<Map<String, Object>> getLocations(String locationName) { // for proj3
-        List<GraphNode> collecting = trie.getWordsWithPrefix(locationName);
+        return locationData(trie.getWordsWithPrefix(locationName));
+    }
+
+    /**
+     * Collect all locations whose cleaned name contains every word of the cleaned
+     * <code>query</code>, wherever they appear in it, using the inverted word index.
+     * @param query Words searched for, separated by spaces.
+     * @return The matching locations, in the form of getLocations.
+     */
+    public static List<Map<String, Object>> getLocationsByWords(String query) {
+        return locationData(words.getLocationsWithWords(query));
+    }
+
+    /** Each location as a map of parameters for the Json response. */
+    private static List<Map<String, Object>> locationData(List<GraphNode> collecting) {
         LinkedList<Map<String, Object>> returning = new LinkedList<>();
         for (GraphNode curr: collecting) {
             HashMap<String, Object> node = new HashMap<>();
@@ -0,0 +1,128 @@
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.LongSupplier;
+
+/**
+ * Stage timers, value distributions and counters, rendered in the Prometheus text exposition
+ * format. Stage timers share one summary metric labelled by stage, so p99 latencies of every
+ * stage of a request can be compared and alerted on side by side.
+ */
+public class Metrics {
+    private static final String PREFIX = "bearmaps_";
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+    private static final double NANOS_PER_SECOND = 1e9;
+
+    private final Map<String, LogHistogram> stages = new LinkedHashMap<>();
+    private final Map<String, Summary> summaries = new LinkedHashMap<>();
+    private final List<Counter> counters = new ArrayList<>();
+
+    private static class Summary {
+        private final String help;
+        private final LogHistogram histogram = new LogHistogram();
+
+        Summary(String help) {
+            this.help = help;
+        }
+    }
+
+    private static class Counter {
+        private final String name;
+        private final String help;
+        private final String type;
+        private final LongSupplier value;
+        private final double scale;
+
+        Counter(String name, String help, String type, LongSupplier value, double scale) {
+            this.name = name;
+            this.help = help;
+            this.type = type;
+            this.value = value;
+            this.scale = scale;
+        }
+    }
+
+    /**
+     * @param stage Label value naming the stage, e.g. "encode".
+     * @return The histogram to record the stage's durations in, in nanoseconds.
+     */
+    public synchronized LogHistogram stage(String stage) {
+        return stages.computeIfAbsent(stage, s -> new LogHistogram());
+    }
+
+    /**
+     * @param name Metric name, without the common prefix.
+     * @return The histogram to record the unitless distribution <code>name</code> in.
+     */
+    public synchronized LogHistogram summary(String name, String help) {
+        return summaries.computeIfAbsent(name, n -> new Summary(help)).histogram;
+    }
+
+    /** Expose the ever-increasing count read from <code>value</code>. */
+    public synchronized void counter(String name, String help, LongSupplier value) {
+        counters.add(new Counter(name, help, "counter", value, 1));
+    }
+
+    /** Expose the ever-increasing count of nanoseconds read from <code>nanos</code>, as seconds. */
+    public synchronized void secondsCounter(String name, String help, LongSupplier nanos) {
+        counters.add(new Counter(name, help, "counter", nanos, 1 / NANOS_PER_SECOND));
+    }
+
+    /** Expose the current level read from <code>value</code>. */
+    public synchronized void gauge(String name, String help, LongSupplier value) {
+        counters.add(new Counter(name, help, "gauge", value, 1));
+    }
+
+    /** @return Every metric in the Prometheus text exposition format, version 0.0.4. */
+    public synchronized String scrape() {
+        StringBuilder out = new StringBuilder();
+        if (!stages.isEmpty()) {
+            String name = PREFIX + "stage_seconds";
+            header(out, name, "Time spent in each stage of request handling.", "summary");
+            for (Map.Entry<String, LogHistogram> stage : stages.entrySet()) {
+                String label = "stage=\"" + stage.getKey() + "\"";
+                summary(out, name, label, stage.getValue(), 1 / NANOS_PER_SECOND);
+            }
+        }
+        for (Map.Entry<String, Summary> summary : summaries.entrySet()) {
+            String name = PREFIX + summary.getKey();
+            header(out, name, summary.getValue().help, "summary");
+            summary(out, name, "", summary.getValue().histogram, 1);
+        }
+        for (Counter counter : counters) {
+            String name = PREFIX + counter.name;
+            header(out, name, counter.help, counter.type);
+            out.append(name).append(' ')
+                    .append(format(counter.value.getAsLong() * counter.scale)).append('\n');
+        }
+        return out.toString();
+    }
+
+    private static void header(StringBuilder out, String name, String help, String type) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void summary(StringBuilder out, String name, String labels,
+                                LogHistogram histogram, double scale) {
+        String separator = labels.isEmpty() ? "" : ",";
+        for (double quantile : QUANTILES) {
+            out.append(name).append('{').append(labels).append(separator)
+                    .append("quantile=\"").append(quantile).append("\"} ")
+                    .append(format(histogram.valueAt(quantile) * scale)).append('\n');
+        }
+        String braces = labels.isEmpty() ? "" : "{" + labels + "}";
+        out.append(name).append("_sum").append(braces).append(' ')
+                .append(format(histogram.sum() * scale)).append('\n');
+        out.append(name).append("_count").append(braces).append(' ')
+                .append(histogram.count()).append('\n');
+    }
+
+    private static String format(double value) {
+        if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+            return Long.toString((long) value);
+        }
+        return Double.toString(value);
+    }
+}
@@ -0,0 +1,48 @@
+import java.util.Arrays;
+
+/**
+ * The coordinates of every OSM node read so far, by id, in primitive arrays. The readers of each
+ * OSM format fill one of these as nodes arrive and resolve the refs of highway ways against it,
+ * the way MapDBHandler does with its map of GraphNodes.
+ */
+public class OsmNodes {
+    private final LongIntHashMap index = new LongIntHashMap(1 << 16);
+    private double[] lons = new double[1 << 16];
+    private double[] lats = new double[1 << 16];
+    private int size;
+
+    /** Record node <code>id</code>, replacing the coordinates of an earlier node with its id. */
+    public void put(long id, double lon, double lat) {
+        int i = index.get(id);
+        if (i < 0) {
+            i = size++;
+            if (i == lons.length) {
+                lons = Arrays.copyOf(lons, i * 2);
+                lats = Arrays.copyOf(lats, i * 2);
+            }
+            index.put(id, i);
+        }
+        lons[i] = lon;
+        lats[i] = lat;
+    }
+
+    /**
+     * Add the road through <code>refs[from, to)</code> to <code>roads</code>, one segment for each
+     * consecutive pair of known nodes; a ref to a node outside the extract breaks the road.
+     */
+    public void addRoad(long[] refs, int from, int to, RoadGraph.Builder roads) {
+        int prev = -1;
+        for (int i = from; i < to; i++) {
+            int node = index.get(refs[i]);
+            if (node < 0) {
+                prev = -1;
+                continue;
+            }
+            int curr = roads.addNode(refs[i], lons[node], lats[node]);
+            if (prev >= 0) {
+                roads.addSegment(prev, curr);
+            }
+            prev = curr;
+        }
+    }
+}
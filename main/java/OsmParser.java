@@ -0,0 +1,717 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Streaming OSM XML parser that does what MapDBHandler does, much faster. It scans the raw
+ * bytes itself, recognising the few element and attribute names it cares about by comparing
+ * bytes with constants, and parses ids and coordinates straight from the bytes into a primitive
+ * node table, so a node costs no Strings or objects unless it is named.
+ * <p>
+ * Resolving the refs of each highway way and building the road graph happen on a second
+ * thread, fed batches of ways, so that work overlaps with scanning the rest of the file. A way
+ * only sees the nodes defined before it, as with the SAX handler: if a node follows ways, the
+ * scanner first waits for the way thread to catch up.
+ * </p>
+ * Only the XML OSM files use is supported: elements, attributes in either quote, the five
+ * predefined entities and character references, comments, processing instructions, CDATA and
+ * a DOCTYPE without an internal subset containing '&gt;'.
+ */
+public class OsmParser {
+    private static final int BUFFER_BYTES = 1 << 16;
+    /** Refs per batch of ways handed to the way thread. */
+    private static final int BATCH_REFS = 1 << 15;
+    private static final int QUEUED_BATCHES = 4;
+
+    private static final int OTHER = 0;
+    private static final int NODE = 1;
+    private static final int WAY = 2;
+    private static final int ND = 3;
+    private static final int TAG = 4;
+    private static final byte[] NODE_NAME = ascii("node");
+    private static final byte[] WAY_NAME = ascii("way");
+    private static final byte[] ND_NAME = ascii("nd");
+    private static final byte[] TAG_NAME = ascii("tag");
+
+    private static final int ID = 1;
+    private static final int LAT = 2;
+    private static final int LON = 3;
+    private static final int REF = 4;
+    private static final int K = 5;
+    private static final int V = 6;
+    private static final byte[] ID_NAME = ascii("id");
+    private static final byte[] LAT_NAME = ascii("lat");
+    private static final byte[] LON_NAME = ascii("lon");
+    private static final byte[] REF_NAME = ascii("ref");
+    private static final byte[] K_NAME = ascii("k");
+    private static final byte[] V_NAME = ascii("v");
+
+    private static final byte[] NAME_KEY = ascii("name");
+    private static final byte[] HIGHWAY_KEY = ascii("highway");
+    private static final byte[] PI_END = ascii("?>");
+    private static final byte[] COMMENT_END = ascii("-->");
+    private static final byte[] CDATA_END = ascii("]]>");
+    /** Powers of ten exactly representable as doubles. */
+    private static final double[] POWERS_OF_TEN = new double[23];
+
+    static {
+        POWERS_OF_TEN[0] = 1;
+        for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+            POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+        }
+    }
+
+    /** Marks the end of the ways. */
+    private static final RoadBatch END = new RoadBatch();
+
+    private final InputStream in;
+    private final GraphDB g;
+    private final RoadGraph.Builder roads;
+    private final byte[] buf = new byte[BUFFER_BYTES];
+    private int pos;
+    private int limit;
+
+    private final OsmNodes nodes = new OsmNodes();
+
+    /* The element being parsed and the node or way it is in, as MapDBHandler tracks them. */
+    private int state = OTHER;
+    private long id;
+    private double lon;
+    private double lat;
+    private long ref;
+    private GraphNode named;
+    private long[] refs = new long[256];
+    private int refCount;
+
+    /* Scratch space for names and attribute values, and the k and v of a tag. */
+    private byte[] name = new byte[64];
+    private int nameLength;
+    /** The byte that ended the last name read. */
+    private int nameTerminator;
+    private byte[] value = new byte[256];
+    private int valueLength;
+    private byte[] key = new byte[64];
+    private int keyLength;
+    private byte[] tagValue = new byte[256];
+    private int tagValueLength;
+
+    private final BlockingQueue<RoadBatch> batches = new ArrayBlockingQueue<>(QUEUED_BATCHES);
+    private RoadBatch batch = new RoadBatch();
+    /** Whether ways have been handed off that the way thread may not have resolved yet. */
+    private boolean waysInFlight;
+    private volatile Throwable failure;
+
+    /** The refs of consecutive highway ways, and where each way's refs end. */
+    private static class RoadBatch {
+        private long[] refs = new long[BATCH_REFS];
+        private int[] ends = new int[256];
+        private int refCount;
+        private int wayCount;
+        /** If not null, counted down once this batch and all before it are resolved. */
+        private CountDownLatch resolved;
+    }
+
+    private OsmParser(InputStream in, GraphDB g, RoadGraph.Builder roads) {
+        this.in = in;
+        this.g = g;
+        this.roads = roads;
+    }
+
+    /**
+     * Parse OSM XML from <code>in</code>, reporting named nodes to <code>g</code> as they are
+     * found and every node and segment of the allowed highways to <code>roads</code>.
+     * @throws IOException If reading fails or the input is not well-formed enough to parse.
+     */
+    public static void parse(InputStream in, GraphDB g, RoadGraph.Builder roads)
+            throws IOException {
+        new OsmParser(in, g, roads).run();
+    }
+
+    private static byte[] ascii(String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private void run() throws IOException {
+        Thread wayThread = new Thread(this::resolveWays, "osm-ways");
+        wayThread.setDaemon(true);
+        wayThread.start();
+        try {
+            scan();
+            flushWays();
+        } finally {
+            try {
+                batches.put(END);
+                wayThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted waiting for the way thread");
+            }
+        }
+        checkWays();
+    }
+
+    /* ---- Scanning ---- */
+
+    /** @return The next byte, or -1 at the end of the input. */
+    private int read() throws IOException {
+        if (pos == limit) {
+            limit = in.read(buf, 0, buf.length);
+            pos = 0;
+            if (limit <= 0) {
+                limit = 0;
+                return -1;
+            }
+        }
+        return buf[pos++] & 0xFF;
+    }
+
+    private int readOrFail() throws IOException {
+        int c = read();
+        if (c < 0) {
+            throw new IOException("Unexpected end of OSM input");
+        }
+        return c;
+    }
+
+    private static boolean isSpace(int c) {
+        return c == ' ' || c == '\n' || c == '\t' || c == '\r';
+    }
+
+    private int skipSpace() throws IOException {
+        int c = readOrFail();
+        while (isSpace(c)) {
+            c = readOrFail();
+        }
+        return c;
+    }
+
+    /** Consume input up to and including the first occurrence of <code>end</code>. */
+    private void skipPast(byte[] end) throws IOException {
+        byte[] window = new byte[end.length];
+        long seen = 0;
+        while (true) {
+            window[(int) (seen++ % end.length)] = (byte) readOrFail();
+            if (seen >= end.length && endsWith(window, seen, end)) {
+                return;
+            }
+        }
+    }
+
+    /** Whether the last <code>end.length</code> bytes put in the ring buffer match end. */
+    private static boolean endsWith(byte[] window, long seen, byte[] end) {
+        for (int i = 0; i < end.length; i++) {
+            if (window[(int) ((seen + i) % end.length)] != end[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void scan() throws IOException {
+        int c;
+        while ((c = read()) >= 0) {
+            if (c != '<') {
+                continue;
+            }
+            c = readOrFail();
+            if (c == '/') {
+                int element = readName(readOrFail());
+                int last = nameTerminator;
+                if (last != '>') {
+                    if (!isSpace(last) || skipSpace() != '>') {
+                        throw new IOException("Malformed end tag in OSM input");
+                    }
+                }
+                end(element);
+            } else if (c == '?') {
+                skipPast(PI_END);
+            } else if (c == '!') {
+                skipDeclaration();
+            } else {
+                startTag(c);
+            }
+        }
+    }
+
+    /** Skip a comment, CDATA section or DOCTYPE, after its "&lt;!". */
+    private void skipDeclaration() throws IOException {
+        int c = readOrFail();
+        if (c == '-') {
+            if (readOrFail() != '-') {
+                throw new IOException("Malformed comment in OSM input");
+            }
+            skipPast(COMMENT_END);
+        } else if (c == '[') {
+            skipPast(CDATA_END);
+        } else {
+            int depth = 0;
+            while (c != '>' || depth > 0) {
+                if (c == '[') {
+                    depth++;
+                } else if (c == ']') {
+                    depth--;
+                }
+                c = readOrFail();
+            }
+        }
+    }
+
+    /**
+     * Read a name starting with <code>first</code> into <code>name</code>, up to whitespace,
+     * '=', '/' or '&gt;', which is left in nameTerminator.
+     * @return The element code of the name.
+     */
+    private int readName(int first) throws IOException {
+        nameLength = 0;
+        int c = first;
+        while (!isSpace(c) && c != '=' && c != '/' && c != '>') {
+            if (nameLength == name.length) {
+                name = Arrays.copyOf(name, nameLength * 2);
+            }
+            name[nameLength++] = (byte) c;
+            c = readOrFail();
+        }
+        nameTerminator = c;
+        return elementCode();
+    }
+
+    private boolean nameIs(byte[] constant) {
+        return equal(name, nameLength, constant);
+    }
+
+    private static boolean equal(byte[] bytes, int length, byte[] constant) {
+        if (length != constant.length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (bytes[i] != constant[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int elementCode() {
+        switch (nameLength) {
+            case 2:
+                return nameIs(ND_NAME) ? ND : OTHER;
+            case 3:
+                return nameIs(WAY_NAME) ? WAY : nameIs(TAG_NAME) ? TAG : OTHER;
+            case 4:
+                return nameIs(NODE_NAME) ? NODE : OTHER;
+            default:
+                return OTHER;
+        }
+    }
+
+    private int attributeCode() {
+        switch (nameLength) {
+            case 1:
+                return nameIs(K_NAME) ? K : nameIs(V_NAME) ? V : OTHER;
+            case 2:
+                return nameIs(ID_NAME) ? ID : OTHER;
+            case 3:
+                return nameIs(LAT_NAME) ? LAT : nameIs(LON_NAME) ? LON
+                        : nameIs(REF_NAME) ? REF : OTHER;
+            default:
+                return OTHER;
+        }
+    }
+
+    /** Parse a start tag whose name begins with <code>first</code>, and act on it. */
+    private void startTag(int first) throws IOException {
+        int element = readName(first);
+        if (element == NODE) {
+            id = 0;
+            lon = 0;
+            lat = 0;
+        }
+        ref = 0;
+        keyLength = 0;
+        tagValueLength = 0;
+        int c = nameTerminator;
+        while (true) {
+            if (isSpace(c)) {
+                c = skipSpace();
+            }
+            if (c == '>') {
+                start(element);
+                return;
+            }
+            if (c == '/') {
+                if (readOrFail() != '>') {
+                    throw new IOException("Malformed empty tag in OSM input");
+                }
+                start(element);
+                end(element);
+                return;
+            }
+            readName(c);
+            int attribute = attributeCode();
+            c = nameTerminator;
+            if (isSpace(c)) {
+                c = skipSpace();
+            }
+            if (c != '=') {
+                throw new IOException("Attribute without a value in OSM input");
+            }
+            int quote = skipSpace();
+            if (quote != '"' && quote != '\'') {
+                throw new IOException("Unquoted attribute value in OSM input");
+            }
+            readValue(quote);
+            attribute(element, attribute);
+            c = readOrFail();
+        }
+    }
+
+    /** Read an attribute value up to its closing quote, decoding references, into value. */
+    private void readValue(int quote) throws IOException {
+        valueLength = 0;
+        int c = readOrFail();
+        while (c != quote) {
+            if (c == '&') {
+                appendCodePoint(readReference());
+            } else if (c == '\r') {
+                /* Line ends are normalized, then whitespace in attributes becomes a space. */
+                append(' ');
+                c = readOrFail();
+                if (c != '\n') {
+                    continue;
+                }
+            } else if (c == '\n' || c == '\t') {
+                append(' ');
+            } else {
+                append(c);
+            }
+            c = readOrFail();
+        }
+    }
+
+    private void append(int b) {
+        if (valueLength == value.length) {
+            value = Arrays.copyOf(value, valueLength * 2);
+        }
+        value[valueLength++] = (byte) b;
+    }
+
+    private void appendCodePoint(int cp) {
+        if (cp < 0x80) {
+            append(cp);
+        } else if (cp < 0x800) {
+            append(0xC0 | (cp >> 6));
+            append(0x80 | (cp & 0x3F));
+        } else if (cp < 0x10000) {
+            append(0xE0 | (cp >> 12));
+            append(0x80 | ((cp >> 6) & 0x3F));
+            append(0x80 | (cp & 0x3F));
+        } else {
+            append(0xF0 | (cp >> 18));
+            append(0x80 | ((cp >> 12) & 0x3F));
+            append(0x80 | ((cp >> 6) & 0x3F));
+            append(0x80 | (cp & 0x3F));
+        }
+    }
+
+    /** @return The code point of the reference after an '&amp;', consumed up to its ';'. */
+    private int readReference() throws IOException {
+        StringBuilder reference = new StringBuilder();
+        int c = readOrFail();
+        while (c != ';') {
+            if (reference.length() > 10) {
+                throw new IOException("Malformed reference in OSM input");
+            }
+            reference.append((char) c);
+            c = readOrFail();
+        }
+        String r = reference.toString();
+        switch (r) {
+            case "amp":
+                return '&';
+            case "lt":
+                return '<';
+            case "gt":
+                return '>';
+            case "quot":
+                return '"';
+            case "apos":
+                return '\'';
+            default:
+                break;
+        }
+        try {
+            if (r.startsWith("#x")) {
+                return Integer.parseInt(r.substring(2), 16);
+            } else if (r.startsWith("#")) {
+                return Integer.parseInt(r.substring(1));
+            }
+        } catch (NumberFormatException e) {
+            throw new IOException("Malformed character reference &" + r + "; in OSM input");
+        }
+        throw new IOException("Unknown entity &" + r + "; in OSM input");
+    }
+
+    /* ---- Numbers ---- */
+
+    private long parseLong() throws IOException {
+        int i = 0;
+        boolean negative = valueLength > 0 && value[0] == '-';
+        if (negative) {
+            i++;
+        }
+        if (i == valueLength) {
+            throw malformedNumber();
+        }
+        long result = 0;
+        for (; i < valueLength; i++) {
+            int digit = value[i] - '0';
+            if (digit < 0 || digit > 9) {
+                throw malformedNumber();
+            }
+            result = result * 10 + digit;
+        }
+        return negative ? -result : result;
+    }
+
+    /**
+     * Parse a decimal like "-122.2591234". When its digits fit in a double's 53-bit mantissa
+     * and it has at most 22 decimals, one correctly rounded division gives exactly what
+     * Double.parseDouble would; anything else is handed to Double.parseDouble.
+     */
+    private double parseDouble() throws IOException {
+        int i = 0;
+        boolean negative = valueLength > 0 && value[0] == '-';
+        if (negative || (valueLength > 0 && value[0] == '+')) {
+            i++;
+        }
+        long mantissa = 0;
+        int digits = 0;
+        int decimals = -1;
+        for (; i < valueLength; i++) {
+            int c = value[i];
+            if (c == '.' && decimals < 0) {
+                decimals = 0;
+                continue;
+            }
+            int digit = c - '0';
+            if (digit < 0 || digit > 9) {
+                return slowParseDouble();
+            }
+            mantissa = mantissa * 10 + digit;
+            if (++digits > 18) {
+                return slowParseDouble();
+            }
+            if (decimals >= 0) {
+                decimals++;
+            }
+        }
+        if (digits == 0 || mantissa >= 1L << 53 || decimals >= POWERS_OF_TEN.length) {
+            return slowParseDouble();
+        }
+        double result = decimals > 0 ? mantissa / POWERS_OF_TEN[decimals] : mantissa;
+        return negative ? -result : result;
+    }
+
+    private double slowParseDouble() throws IOException {
+        try {
+            return Double.parseDouble(new String(value, 0, valueLength,
+                    StandardCharsets.US_ASCII));
+        } catch (NumberFormatException e) {
+            throw malformedNumber();
+        }
+    }
+
+    private IOException malformedNumber() {
+        return new IOException("Malformed number \""
+                + new String(value, 0, valueLength, StandardCharsets.UTF_8) + "\" in OSM input");
+    }
+
+    /* ---- What MapDBHandler does with each element ---- */
+
+    private void attribute(int element, int attribute) throws IOException {
+        switch (element) {
+            case NODE:
+                if (attribute == ID) {
+                    id = parseLong();
+                } else if (attribute == LON) {
+                    lon = parseDouble();
+                } else if (attribute == LAT) {
+                    lat = parseDouble();
+                }
+                break;
+            case ND:
+                if (attribute == REF) {
+                    ref = parseLong();
+                }
+                break;
+            case TAG:
+                if (attribute == K) {
+                    key = copy(key, keyLength = valueLength);
+                } else if (attribute == V) {
+                    tagValue = copy(tagValue, tagValueLength = valueLength);
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    /** Copy the current value into <code>into</code>, grown if need be. */
+    private byte[] copy(byte[] into, int length) {
+        if (into.length < length) {
+            into = new byte[Math.max(length, into.length * 2)];
+        }
+        System.arraycopy(value, 0, into, 0, length);
+        return into;
+    }
+
+    private void start(int element) throws IOException {
+        switch (element) {
+            case NODE:
+                state = NODE;
+                addNode();
+                break;
+            case WAY:
+                state = WAY;
+                break;
+            case ND:
+                if (state == WAY) {
+                    if (refCount == refs.length) {
+                        refs = Arrays.copyOf(refs, refCount * 2);
+                    }
+                    refs[refCount++] = ref;
+                }
+                break;
+            case TAG:
+                if (state == NODE && equal(key, keyLength, NAME_KEY)) {
+                    if (named == null) {
+                        named = new GraphNode(id, lon, lat);
+                    }
+                    named.setName(new String(tagValue, 0, tagValueLength,
+                            StandardCharsets.UTF_8));
+                    g.addLocation(named);
+                } else if (state == WAY && equal(key, keyLength, HIGHWAY_KEY) && refCount > 1
+                        && MapDBHandler.ALLOWED_HIGHWAY_TYPES.contains(
+                                new String(tagValue, 0, tagValueLength, StandardCharsets.UTF_8))) {
+                    addWay();
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    private void end(int element) {
+        if (element == WAY || element == NODE) {
+            state = OTHER;
+            refCount = 0;
+            named = null;
+        }
+    }
+
+    private void addNode() throws IOException {
+        if (waysInFlight) {
+            awaitWays();
+        }
+        nodes.put(id, lon, lat);
+    }
+
+    /* ---- Handing ways to the way thread ---- */
+
+    private void addWay() throws IOException {
+        if (batch.refCount + refCount > batch.refs.length) {
+            flushWays();
+            if (refCount > batch.refs.length) {
+                batch.refs = new long[refCount];
+            }
+        }
+        if (batch.wayCount == batch.ends.length) {
+            batch.ends = Arrays.copyOf(batch.ends, batch.wayCount * 2);
+        }
+        System.arraycopy(refs, 0, batch.refs, batch.refCount, refCount);
+        batch.refCount += refCount;
+        batch.ends[batch.wayCount++] = batch.refCount;
+        waysInFlight = true;
+    }
+
+    private void flushWays() throws IOException {
+        if (batch.wayCount > 0) {
+            send(batch);
+            batch = new RoadBatch();
+        }
+    }
+
+    /** Hand off pending ways and wait until every way so far is resolved. */
+    private void awaitWays() throws IOException {
+        flushWays();
+        RoadBatch marker = new RoadBatch();
+        marker.resolved = new CountDownLatch(1);
+        send(marker);
+        try {
+            marker.resolved.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for the way thread");
+        }
+        checkWays();
+        waysInFlight = false;
+    }
+
+    private void send(RoadBatch b) throws IOException {
+        try {
+            batches.put(b);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted handing ways to the way thread");
+        }
+    }
+
+    private void checkWays() throws IOException {
+        if (failure != null) {
+            throw new IOException("Resolving ways failed", failure);
+        }
+    }
+
+    /**
+     * The way thread: add each way's nodes and segments to the road graph, breaking the road at
+     * refs to nodes outside the extract. After a failure, batches are still drained so the
+     * scanner never blocks, but nothing more is built.
+     */
+    private void resolveWays() {
+        while (true) {
+            RoadBatch b;
+            try {
+                b = batches.take();
+            } catch (InterruptedException e) {
+                failure = e;
+                return;
+            }
+            if (b == END) {
+                return;
+            }
+            if (failure == null) {
+                try {
+                    resolve(b);
+                } catch (RuntimeException | Error e) {
+                    failure = e;
+                }
+            }
+            if (b.resolved != null) {
+                b.resolved.countDown();
+            }
+        }
+    }
+
+    private void resolve(RoadBatch b) {
+        int start = 0;
+        for (int w = 0; w < b.wayCount; w++) {
+            nodes.addRoad(b.refs, start, b.ends[w], roads);
+            start = b.ends[w];
+        }
+    }
+}
@@ -0,0 +1,530 @@
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reads the binary OSM PBF format, with the same result MapDBHandler gives for the equivalent
+ * XML: named nodes go to the GraphDB and allowed highways to the road graph. The file is a
+ * sequence of independently compressed blocks of a few thousand elements each. Blocks are read
+ * in order but inflated and decoded on a pool of threads, several at a time, then applied in
+ * file order so ways only see the nodes before them.
+ * <p>
+ * Supports raw and zlib blobs, plain and dense nodes; metadata and relations are skipped.
+ * </p>
+ * @see <a href="https://wiki.openstreetmap.org/wiki/PBF_Format">PBF Format</a>
+ */
+public class OsmPbfReader {
+    /** Threads decoding blocks; set with -Dbearmaps.pbfThreads. */
+    private static final int DECODE_THREADS = Math.max(1, Integer.getInteger(
+            "bearmaps.pbfThreads", Runtime.getRuntime().availableProcessors()));
+    /** Blocks read ahead of the one being applied, per decoding thread. */
+    private static final int READ_AHEAD = 2;
+    /** Limits from the format's specification. */
+    private static final int MAX_HEADER_BYTES = 64 * 1024;
+    private static final int MAX_BLOB_BYTES = 32 * 1024 * 1024;
+    private static final Set<String> SUPPORTED_FEATURES =
+            new HashSet<>(Arrays.asList("OsmSchema-V0.6", "DenseNodes"));
+    private static final double NANODEGREES = 1e9;
+    private static final byte[] NAME_KEY = "name".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] HIGHWAY_KEY = "highway".getBytes(StandardCharsets.UTF_8);
+
+    private final GraphDB g;
+    private final RoadGraph.Builder roads;
+    private final OsmNodes nodes = new OsmNodes();
+
+    /** The elements of one primitive group that matter here, decoded. */
+    private static class Group {
+        private long[] ids = new long[0];
+        private double[] lons = new double[0];
+        private double[] lats = new double[0];
+        /** Name of each node, or null. */
+        private String[] names = new String[0];
+        private int nodeCount;
+        /** The refs of the allowed highways, and where each one's refs end. */
+        private long[] refs = new long[0];
+        private int[] ends = new int[0];
+        private int wayCount;
+    }
+
+    private OsmPbfReader(GraphDB g, RoadGraph.Builder roads) {
+        this.g = g;
+        this.roads = roads;
+    }
+
+    /**
+     * Parse OSM PBF from <code>in</code>, reporting named nodes to <code>g</code> and every node
+     * and segment of the allowed highways to <code>roads</code>.
+     * @throws IOException If reading fails, or the file is malformed or needs unsupported
+     * features.
+     */
+    public static void parse(InputStream in, GraphDB g, RoadGraph.Builder roads)
+            throws IOException {
+        new OsmPbfReader(g, roads).run(in);
+    }
+
+    private void run(InputStream in) throws IOException {
+        DataInputStream data = new DataInputStream(new BufferedInputStream(in, 1 << 16));
+        AtomicInteger threads = new AtomicInteger();
+        ExecutorService decoders = Executors.newFixedThreadPool(DECODE_THREADS, r -> {
+            Thread t = new Thread(r, "pbf-decode-" + threads.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        ArrayDeque<Future<List<Group>>> pending = new ArrayDeque<>();
+        try {
+            int headerLength;
+            while ((headerLength = readHeaderLength(data)) >= 0) {
+                if (headerLength > MAX_HEADER_BYTES) {
+                    throw new IOException("PBF blob header of " + headerLength + " bytes");
+                }
+                String type = null;
+                int blobLength = -1;
+                byte[] header = new byte[headerLength];
+                data.readFully(header);
+                ProtoReader r = new ProtoReader(header, 0, headerLength);
+                while (r.next()) {
+                    if (r.field() == 1) {
+                        type = r.string();
+                    } else if (r.field() == 3) {
+                        blobLength = (int) r.varint();
+                    } else {
+                        r.skip();
+                    }
+                }
+                if (blobLength < 0 || blobLength > MAX_BLOB_BYTES) {
+                    throw new IOException("PBF blob of " + blobLength + " bytes");
+                }
+                byte[] blob = new byte[blobLength];
+                data.readFully(blob);
+                if ("OSMHeader".equals(type)) {
+                    checkFeatures(inflate(blob));
+                } else if ("OSMData".equals(type)) {
+                    pending.add(decoders.submit(() -> decodeBlock(inflate(blob))));
+                    if (pending.size() >= DECODE_THREADS * READ_AHEAD) {
+                        apply(await(pending.poll()));
+                    }
+                }
+            }
+            while (!pending.isEmpty()) {
+                apply(await(pending.poll()));
+            }
+        } finally {
+            decoders.shutdownNow();
+        }
+    }
+
+    /** @return The length of the next blob header, or -1 at the end of the file. */
+    private static int readHeaderLength(DataInputStream data) throws IOException {
+        int first = data.read();
+        if (first < 0) {
+            return -1;
+        }
+        try {
+            return (first << 24) | (data.readUnsignedByte() << 16)
+                    | (data.readUnsignedByte() << 8) | data.readUnsignedByte();
+        } catch (EOFException e) {
+            throw new IOException("Truncated PBF blob header", e);
+        }
+    }
+
+    private static List<Group> await(Future<List<Group>> block) throws IOException {
+        try {
+            return block.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted decoding PBF blocks");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Decoding a PBF block failed", e.getCause());
+        }
+    }
+
+    /** Add a decoded block's nodes, locations and roads, in the block's order. */
+    private void apply(List<Group> block) {
+        for (Group group : block) {
+            for (int i = 0; i < group.nodeCount; i++) {
+                nodes.put(group.ids[i], group.lons[i], group.lats[i]);
+                if (group.names[i] != null) {
+                    GraphNode location = new GraphNode(group.ids[i], group.lons[i], group.lats[i]);
+                    location.setName(group.names[i]);
+                    g.addLocation(location);
+                }
+            }
+            int start = 0;
+            for (int w = 0; w < group.wayCount; w++) {
+                nodes.addRoad(group.refs, start, group.ends[w], roads);
+                start = group.ends[w];
+            }
+        }
+    }
+
+    /** @return The uncompressed contents of a Blob message. */
+    private static byte[] inflate(byte[] blob) throws IOException {
+        ProtoReader r = new ProtoReader(blob, 0, blob.length);
+        int rawSize = -1;
+        byte[] zlib = null;
+        while (r.next()) {
+            switch (r.field()) {
+                case 1:
+                    return r.bytes();
+                case 2:
+                    rawSize = (int) r.varint();
+                    break;
+                case 3:
+                    zlib = r.bytes();
+                    break;
+                case 4:
+                case 5:
+                case 6:
+                case 7:
+                    throw new IOException("Unsupported PBF blob compression " + r.field());
+                default:
+                    r.skip();
+                    break;
+            }
+        }
+        if (zlib == null || rawSize < 0 || rawSize > MAX_BLOB_BYTES) {
+            throw new IOException("PBF blob without data");
+        }
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(zlib);
+            byte[] raw = new byte[rawSize];
+            int n = 0;
+            while (n < rawSize && !inflater.finished()) {
+                int inflated = inflater.inflate(raw, n, rawSize - n);
+                if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                n += inflated;
+            }
+            if (n != rawSize) {
+                throw new IOException("PBF blob inflated to " + n + " of " + rawSize + " bytes");
+            }
+            return raw;
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt zlib data in PBF blob", e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /** Reject files that need features beyond nodes, ways and relations. */
+    private static void checkFeatures(byte[] headerBlock) throws IOException {
+        ProtoReader r = new ProtoReader(headerBlock, 0, headerBlock.length);
+        while (r.next()) {
+            if (r.field() == 4) {
+                String feature = r.string();
+                if (!SUPPORTED_FEATURES.contains(feature)) {
+                    throw new IOException("Unsupported PBF feature " + feature);
+                }
+            } else {
+                r.skip();
+            }
+        }
+    }
+
+    /* ---- Decoding a PrimitiveBlock, on a decoding thread ---- */
+
+    /** The string table and coordinate encoding shared by a block's groups. */
+    private static class Context {
+        private final byte[][] strings;
+        private final int nameKey;
+        private final int highwayKey;
+        private final long granularity;
+        private final long latOffset;
+        private final long lonOffset;
+
+        Context(byte[][] strings, long granularity, long latOffset, long lonOffset) {
+            this.strings = strings;
+            this.granularity = granularity;
+            this.latOffset = latOffset;
+            this.lonOffset = lonOffset;
+            nameKey = indexOf(strings, NAME_KEY);
+            highwayKey = indexOf(strings, HIGHWAY_KEY);
+        }
+
+        private static int indexOf(byte[][] strings, byte[] s) {
+            for (int i = 1; i < strings.length; i++) {
+                if (Arrays.equals(strings[i], s)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * One division of the exact integer, so a coordinate stored with 7 decimals decodes to
+         * the same double as parsing its XML text.
+         */
+        double lat(long lat) {
+            return (latOffset + granularity * lat) / NANODEGREES;
+        }
+
+        double lon(long lon) {
+            return (lonOffset + granularity * lon) / NANODEGREES;
+        }
+
+        String string(long index) throws IOException {
+            if (index < 0 || index >= strings.length) {
+                throw new IOException("PBF string index " + index + " out of range");
+            }
+            return new String(strings[(int) index], StandardCharsets.UTF_8);
+        }
+
+        boolean allowedHighway(long value) throws IOException {
+            return MapDBHandler.ALLOWED_HIGHWAY_TYPES.contains(string(value));
+        }
+    }
+
+    private static List<Group> decodeBlock(byte[] block) throws IOException {
+        ProtoReader r = new ProtoReader(block, 0, block.length);
+        List<ProtoReader> groups = new ArrayList<>();
+        List<byte[]> strings = new ArrayList<>();
+        long granularity = 100;
+        long latOffset = 0;
+        long lonOffset = 0;
+        while (r.next()) {
+            switch (r.field()) {
+                case 1:
+                    ProtoReader table = r.message();
+                    while (table.next()) {
+                        if (table.field() == 1) {
+                            strings.add(table.bytes());
+                        } else {
+                            table.skip();
+                        }
+                    }
+                    break;
+                case 2:
+                    groups.add(r.message());
+                    break;
+                case 17:
+                    granularity = r.varint();
+                    break;
+                case 19:
+                    latOffset = r.varint();
+                    break;
+                case 20:
+                    lonOffset = r.varint();
+                    break;
+                default:
+                    r.skip();
+                    break;
+            }
+        }
+        Context context = new Context(strings.toArray(new byte[0][]), granularity, latOffset,
+                lonOffset);
+        List<Group> decoded = new ArrayList<>(groups.size());
+        for (ProtoReader group : groups) {
+            decoded.add(decodeGroup(group, context));
+        }
+        return decoded;
+    }
+
+    private static Group decodeGroup(ProtoReader r, Context context) throws IOException {
+        Group group = new Group();
+        while (r.next()) {
+            switch (r.field()) {
+                case 1:
+                    decodeNode(r.message(), context, group);
+                    break;
+                case 2:
+                    decodeDense(r.message(), context, group);
+                    break;
+                case 3:
+                    decodeWay(r.message(), context, group);
+                    break;
+                default:
+                    r.skip();
+                    break;
+            }
+        }
+        return group;
+    }
+
+    private static void addNode(Group group, long id, double lon, double lat, String name) {
+        int i = group.nodeCount++;
+        if (i == group.ids.length) {
+            int capacity = Math.max(64, i * 2);
+            group.ids = Arrays.copyOf(group.ids, capacity);
+            group.lons = Arrays.copyOf(group.lons, capacity);
+            group.lats = Arrays.copyOf(group.lats, capacity);
+            group.names = Arrays.copyOf(group.names, capacity);
+        }
+        group.ids[i] = id;
+        group.lons[i] = lon;
+        group.lats[i] = lat;
+        group.names[i] = name;
+    }
+
+    private static ProtoReader packed(ProtoReader r) throws IOException {
+        if (r.wireType() != ProtoReader.LENGTH_DELIMITED) {
+            throw new IOException("Unpacked repeated field " + r.field() + " in PBF");
+        }
+        return r.message();
+    }
+
+    private static void decodeDense(ProtoReader r, Context context, Group group)
+            throws IOException {
+        ProtoReader ids = null;
+        ProtoReader lats = null;
+        ProtoReader lons = null;
+        ProtoReader keysVals = null;
+        while (r.next()) {
+            switch (r.field()) {
+                case 1:
+                    ids = packed(r);
+                    break;
+                case 8:
+                    lats = packed(r);
+                    break;
+                case 9:
+                    lons = packed(r);
+                    break;
+                case 10:
+                    keysVals = packed(r);
+                    break;
+                default:
+                    r.skip();
+                    break;
+            }
+        }
+        if (ids == null) {
+            return;
+        }
+        if (lats == null || lons == null) {
+            throw new IOException("Dense nodes without coordinates in PBF");
+        }
+        long id = 0;
+        long lat = 0;
+        long lon = 0;
+        while (ids.hasRemaining()) {
+            id += ids.sint();
+            lat += lats.sint();
+            lon += lons.sint();
+            String name = null;
+            if (keysVals != null) {
+                long key;
+                while (keysVals.hasRemaining() && (key = keysVals.varint()) != 0) {
+                    long value = keysVals.varint();
+                    if (key == context.nameKey) {
+                        name = context.string(value);
+                    }
+                }
+            }
+            addNode(group, id, context.lon(lon), context.lat(lat), name);
+        }
+    }
+
+    private static void decodeNode(ProtoReader r, Context context, Group group)
+            throws IOException {
+        long id = 0;
+        long lat = 0;
+        long lon = 0;
+        ProtoReader keys = null;
+        ProtoReader vals = null;
+        while (r.next()) {
+            switch (r.field()) {
+                case 1:
+                    id = r.sint();
+                    break;
+                case 2:
+                    keys = packed(r);
+                    break;
+                case 3:
+                    vals = packed(r);
+                    break;
+                case 8:
+                    lat = r.sint();
+                    break;
+                case 9:
+                    lon = r.sint();
+                    break;
+                default:
+                    r.skip();
+                    break;
+            }
+        }
+        String name = null;
+        while (keys != null && vals != null && keys.hasRemaining()) {
+            long key = keys.varint();
+            long value = vals.varint();
+            if (key == context.nameKey) {
+                name = context.string(value);
+            }
+        }
+        addNode(group, id, context.lon(lon), context.lat(lat), name);
+    }
+
+    private static void decodeWay(ProtoReader r, Context context, Group group)
+            throws IOException {
+        boolean highway = false;
+        ProtoReader keys = null;
+        ProtoReader vals = null;
+        ProtoReader refs = null;
+        while (r.next()) {
+            switch (r.field()) {
+                case 2:
+                    keys = packed(r);
+                    break;
+                case 3:
+                    vals = packed(r);
+                    break;
+                case 8:
+                    refs = packed(r);
+                    break;
+                default:
+                    r.skip();
+                    break;
+            }
+        }
+        while (keys != null && vals != null && keys.hasRemaining()) {
+            long key = keys.varint();
+            long value = vals.varint();
+            if (key == context.highwayKey && context.allowedHighway(value)) {
+                highway = true;
+            }
+        }
+        if (!highway || refs == null) {
+            return;
+        }
+        int start = group.wayCount == 0 ? 0 : group.ends[group.wayCount - 1];
+        int end = start;
+        long ref = 0;
+        while (refs.hasRemaining()) {
+            ref += refs.sint();
+            if (end == group.refs.length) {
+                group.refs = Arrays.copyOf(group.refs, Math.max(256, end * 2));
+            }
+            group.refs[end++] = ref;
+        }
+        /* As in MapDBHandler, a road needs at least two refs. */
+        if (end - start < 2) {
+            return;
+        }
+        if (group.wayCount == group.ends.length) {
+            group.ends = Arrays.copyOf(group.ends, Math.max(64, group.wayCount * 2));
+        }
+        group.ends[group.wayCount++] = end;
+    }
+}
@@ -0,0 +1,134 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reads protocol buffer wire format from a byte array in place, for the few messages of the OSM
+ * PBF format. Embedded messages and packed fields are read by a new reader over the same array,
+ * so nothing is copied.
+ */
+public class ProtoReader {
+    static final int VARINT = 0;
+    static final int FIXED64 = 1;
+    static final int LENGTH_DELIMITED = 2;
+    static final int FIXED32 = 5;
+
+    private final byte[] buf;
+    private int pos;
+    private final int limit;
+    private int tag;
+
+    public ProtoReader(byte[] buf, int offset, int length) {
+        this.buf = buf;
+        this.pos = offset;
+        this.limit = offset + length;
+    }
+
+    /**
+     * Advance to the next field.
+     * @return Whether there is one; its number and wire type are then available.
+     */
+    public boolean next() throws IOException {
+        if (pos >= limit) {
+            return false;
+        }
+        tag = (int) varint();
+        return true;
+    }
+
+    public int field() {
+        return tag >>> 3;
+    }
+
+    public int wireType() {
+        return tag & 7;
+    }
+
+    /** Whether more values remain, when reading a packed field. */
+    public boolean hasRemaining() {
+        return pos < limit;
+    }
+
+    public long varint() throws IOException {
+        long result = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            if (pos >= limit) {
+                throw truncated();
+            }
+            byte b = buf[pos++];
+            result |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                return result;
+            }
+        }
+        throw new IOException("Malformed varint in protocol buffer");
+    }
+
+    /** A zigzag-encoded sint32 or sint64. */
+    public long sint() throws IOException {
+        long n = varint();
+        return (n >>> 1) ^ -(n & 1);
+    }
+
+    /** A reader over the current length-delimited field: an embedded message or packed values. */
+    public ProtoReader message() throws IOException {
+        int length = length();
+        ProtoReader r = new ProtoReader(buf, pos, length);
+        pos += length;
+        return r;
+    }
+
+    /** The current length-delimited field as a new array. */
+    public byte[] bytes() throws IOException {
+        int length = length();
+        byte[] b = new byte[length];
+        System.arraycopy(buf, pos, b, 0, length);
+        pos += length;
+        return b;
+    }
+
+    public String string() throws IOException {
+        int length = length();
+        String s = new String(buf, pos, length, StandardCharsets.UTF_8);
+        pos += length;
+        return s;
+    }
+
+    /** Skip the value of the current field. */
+    public void skip() throws IOException {
+        switch (wireType()) {
+            case VARINT:
+                varint();
+                break;
+            case FIXED64:
+                advance(8);
+                break;
+            case LENGTH_DELIMITED:
+                advance(length());
+                break;
+            case FIXED32:
+                advance(4);
+                break;
+            default:
+                throw new IOException("Unsupported protocol buffer wire type " + wireType());
+        }
+    }
+
+    private int length() throws IOException {
+        long length = varint();
+        if (length < 0 || length > limit - pos) {
+            throw truncated();
+        }
+        return (int) length;
+    }
+
+    private void advance(int n) throws IOException {
+        if (n > limit - pos) {
+            throw truncated();
+        }
+        pos += n;
+    }
+
+    private static IOException truncated() {
+        return new IOException("Truncated protocol buffer");
+    }
+}
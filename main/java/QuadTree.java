@@ -1,40 +1,59 @@
-import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 
 /**
  * Created by JunSeong on 7/16/2016.
+ *
+ * The whole tile pyramid is built in the constructor and never changes afterwards, so any number
+ * of threads may query it at once. Besides the tree links, every depth keeps its tiles in a
+ * row-major array so a tile can be looked up by position.
  */
 
 public class QuadTree {
+    /** Depth of the deepest tiles in img/, whose names are seven digits long. */
+    public static final int MAX_DEPTH = 7;
 
-    private static QTreeNode root;
-
-    private ArrayList<QTreeNode> imgForQuery = new ArrayList<>();
+    private final QTreeNode root;
+    /** levels[d][row * 2^d + col] is the tile at that position of depth d. */
+    private final QTreeNode[][] levels = new QTreeNode[MAX_DEPTH + 1][];
+    private final RasterPlanner planner = new RasterPlanner(this);
 
     public QuadTree() {
+        for (int depth = 0; depth <= MAX_DEPTH; depth++) {
+            levels[depth] = new QTreeNode[1 << (2 * depth)];
+        }
         root = new QTreeNode("root", MapServer.ROOT_ULLON, MapServer.ROOT_ULLAT,
                 MapServer.ROOT_LRLON, MapServer.ROOT_LRLAT);
+        grow(root, 0, 0, 0);
     }
 
-    public ArrayList<QTreeNode> getImg(Map<String, Double> queryParams) {
-        imgForQuery = new ArrayList<>();
-        addToBuffer(root, queryParams);
-        return imgForQuery;
+    private void grow(QTreeNode tree, int depth, int row, int col) {
+        levels[depth][(row << depth) + col] = tree;
+        if (depth < MAX_DEPTH) {
+            tree.createChildren();
+            grow(tree.getChild1(), depth + 1, 2 * row, 2 * col);
+            grow(tree.getChild2(), depth + 1, 2 * row, 2 * col + 1);
+            grow(tree.getChild3(), depth + 1, 2 * row + 1, 2 * col);
+            grow(tree.getChild4(), depth + 1, 2 * row + 1, 2 * col + 1);
+        }
     }
 
-    public void addToBuffer(QTreeNode tree, Map<String, Double> queryParams) {
-        if (tree.containsQuery(queryParams)) {
-            if (tree.finerThanQuery(queryParams) || tree.getName().length() == 7) {
-                imgForQuery.add(tree);
-            } else {
-                if (!tree.hasChildren()) {
-                    tree.createChildren();
-                }
-                addToBuffer(tree.getChild1(), queryParams);
-                addToBuffer(tree.getChild2(), queryParams);
-                addToBuffer(tree.getChild3(), queryParams);
-                addToBuffer(tree.getChild4(), queryParams);
-            }
-        }
+    /** The tile in row <code>row</code> and column <code>col</code> of depth <code>depth</code>. */
+    public QTreeNode tile(int depth, int row, int col) {
+        return levels[depth][(row << depth) + col];
+    }
+
+    /** Choose the tiles for a raster query. */
+    public RasterPlan plan(RasterQuery query) {
+        return planner.plan(query);
+    }
+
+    /**
+     * Collect the tiles that cover the query box at the query's resolution.
+     * @param queryParams Raster request parameters, as described in MapServer.
+     * @return A new list of the tiles, row by row from the upper left.
+     */
+    public List<QTreeNode> getImg(Map<String, Double> queryParams) {
+        return plan(RasterQuery.fromParams(queryParams)).tiles();
     }
 }
@@ -0,0 +1,71 @@
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Finished route-free rasters keyed by the tiles they were made from and the JPEG quality they
+ * were encoded at. Every query that resolves to the same depth and tile range produces the same
+ * image, so panning within a tile and small
+ * zoom changes are answered without composing or encoding anything. Rasters with a route drawn
+ * on them must never be stored here. Least recently used rasters are evicted once the cached
+ * bytes exceed the budget.
+ */
+public class RasterCache {
+    private final long maxBytes;
+    /** In access order, so the eldest entry is the least recently used. */
+    private final LinkedHashMap<Long, RenderedRaster> rasters =
+            new LinkedHashMap<>(64, 0.75f, true);
+    private long bytes;
+    private long hits;
+    private long misses;
+
+    public RasterCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /** The depth and tile range of <code>plan</code> and the quality percent, as one key. */
+    static long key(RasterPlan plan, float quality) {
+        return ((long) Math.round(quality * 100) << 40) | ((long) plan.depth() << 32)
+                | ((long) plan.minRow() << 24)
+                | ((long) plan.maxRow() << 16) | ((long) plan.minCol() << 8) | plan.maxCol();
+    }
+
+    /** @return The raster cached for <code>plan</code>'s tiles at <code>quality</code>, or null. */
+    public synchronized RenderedRaster get(RasterPlan plan, float quality) {
+        RenderedRaster raster = rasters.get(key(plan, quality));
+        if (raster != null) {
+            hits++;
+        } else {
+            misses++;
+        }
+        return raster;
+    }
+
+    public synchronized void put(RasterPlan plan, float quality, RenderedRaster raster) {
+        if (raster.weight() > maxBytes) {
+            return;
+        }
+        RenderedRaster previous = rasters.put(key(plan, quality), raster);
+        if (previous != null) {
+            bytes -= previous.weight();
+        }
+        bytes += raster.weight();
+        Iterator<Map.Entry<Long, RenderedRaster>> eldest = rasters.entrySet().iterator();
+        while (bytes > maxBytes && eldest.hasNext()) {
+            bytes -= eldest.next().getValue().weight();
+            eldest.remove();
+        }
+    }
+
+    public synchronized long hits() {
+        return hits;
+    }
+
+    public synchronized long misses() {
+        return misses;
+    }
+
+    public synchronized long weight() {
+        return bytes;
+    }
+}
@@ -0,0 +1,82 @@
+import java.awt.Graphics;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.Arrays;
+
+/**
+ * Copies tiles into a raster by moving rows of pixels between <code>TYPE_INT_RGB</code> images
+ * directly, skipping the Java2D pipeline and its colour conversion. Tiles are expected to have
+ * been converted with {@link #toIntRgb} when they were loaded.
+ */
+public class RasterComposer {
+    private RasterComposer() {
+    }
+
+    /**
+     * @return <code>image</code> itself if it is already a plain <code>TYPE_INT_RGB</code>
+     * image, otherwise an RGB copy of it drawn over black.
+     */
+    public static BufferedImage toIntRgb(BufferedImage image) {
+        if (image.getType() == BufferedImage.TYPE_INT_RGB && isPacked(image)) {
+            return image;
+        }
+        BufferedImage rgb = new BufferedImage(image.getWidth(), image.getHeight(),
+                BufferedImage.TYPE_INT_RGB);
+        Graphics g = rgb.getGraphics();
+        g.drawImage(image, 0, 0, null);
+        g.dispose();
+        return rgb;
+    }
+
+    /** Whether the pixels of an int image fill its data buffer row after row with no gaps. */
+    private static boolean isPacked(BufferedImage image) {
+        return image.getRaster().getParent() == null
+                && pixels(image).length == image.getWidth() * image.getHeight();
+    }
+
+    private static int[] pixels(BufferedImage image) {
+        return ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+    }
+
+    /**
+     * Copy <code>tile</code> into <code>dest</code> with its upper left corner at (x, y).
+     * Whatever of the <code>size</code> by <code>size</code> cell at (x, y) the tile does not
+     * cover is cleared, as are the parts that fall outside <code>dest</code> clipped off.
+     * @param tile A tile as returned by {@link #toIntRgb}.
+     * @param dest A <code>TYPE_INT_RGB</code> image.
+     */
+    public static void copy(BufferedImage tile, BufferedImage dest, int x, int y, int size) {
+        if (tile.getType() != BufferedImage.TYPE_INT_RGB || !isPacked(tile)) {
+            tile = toIntRgb(tile);
+        }
+        int[] from = pixels(tile);
+        int[] to = pixels(dest);
+        int destWidth = dest.getWidth();
+        int cellWidth = Math.min(size, destWidth - x);
+        int cellHeight = Math.min(size, dest.getHeight() - y);
+        int width = Math.min(tile.getWidth(), cellWidth);
+        int height = Math.min(tile.getHeight(), cellHeight);
+        for (int row = 0; row < height; row++) {
+            int start = (y + row) * destWidth + x;
+            System.arraycopy(from, row * tile.getWidth(), to, start, width);
+            if (width < cellWidth) {
+                Arrays.fill(to, start + width, start + cellWidth, 0);
+            }
+        }
+        if (height < cellHeight) {
+            clear(dest, x, y + height, cellWidth, cellHeight - height);
+        }
+    }
+
+    /** Set the <code>width</code> by <code>height</code> region at (x, y) of dest to black. */
+    public static void clear(BufferedImage dest, int x, int y, int width, int height) {
+        int[] to = pixels(dest);
+        int destWidth = dest.getWidth();
+        width = Math.min(width, destWidth - x);
+        height = Math.min(height, dest.getHeight() - y);
+        for (int row = 0; row < height; row++) {
+            int start = (y + row) * destWidth + x;
+            Arrays.fill(to, start, start + width, 0);
+        }
+    }
+}
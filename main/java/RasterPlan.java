@@ -0,0 +1,82 @@
+import java.util.List;
+
+/**
+ * The tiles chosen for a raster query: every tile of one depth in an inclusive range of rows
+ * and columns, listed row by row from the upper left. Row 0 is the northernmost row and
+ * column 0 the westernmost column of that depth.
+ */
+public class RasterPlan {
+    private final int depth;
+    private final int minRow;
+    private final int maxRow;
+    private final int minCol;
+    private final int maxCol;
+    private final List<QTreeNode> tiles;
+
+    RasterPlan(int depth, int minRow, int maxRow, int minCol, int maxCol,
+               List<QTreeNode> tiles) {
+        this.depth = depth;
+        this.minRow = minRow;
+        this.maxRow = maxRow;
+        this.minCol = minCol;
+        this.maxCol = maxCol;
+        this.tiles = tiles;
+    }
+
+    /** Whether the query box missed the map entirely. */
+    public boolean isEmpty() {
+        return tiles.isEmpty();
+    }
+
+    public int depth() {
+        return depth;
+    }
+
+    public int minRow() {
+        return minRow;
+    }
+
+    public int maxRow() {
+        return maxRow;
+    }
+
+    public int minCol() {
+        return minCol;
+    }
+
+    public int maxCol() {
+        return maxCol;
+    }
+
+    public int rows() {
+        return maxRow - minRow + 1;
+    }
+
+    public int columns() {
+        return maxCol - minCol + 1;
+    }
+
+    /**
+     * The tiles in row-major order: row r, column c is at index
+     * <code>(r - minRow) * columns() + c - minCol</code>.
+     */
+    public List<QTreeNode> tiles() {
+        return tiles;
+    }
+
+    public double ullon() {
+        return tiles.get(0).getULLON();
+    }
+
+    public double ullat() {
+        return tiles.get(0).getULLAT();
+    }
+
+    public double lrlon() {
+        return tiles.get(tiles.size() - 1).getLRLON();
+    }
+
+    public double lrlat() {
+        return tiles.get(tiles.size() - 1).getLRLAT();
+    }
+}
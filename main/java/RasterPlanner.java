@@ -0,0 +1,74 @@
+import java.util.ArrayList;
+import java.util.Collections;
+
+/**
+ * Chooses raster tiles by arithmetic instead of by walking the quadtree. Every tile of a depth
+ * has the same size, so the depth follows from the query's LonDPP alone and the tiles the query
+ * box touches form a rectangle of rows and columns computed from its corners.
+ */
+public class RasterPlanner {
+    private static final double ROOT_WIDTH = MapServer.ROOT_LRLON - MapServer.ROOT_ULLON;
+    private static final double ROOT_HEIGHT = MapServer.ROOT_ULLAT - MapServer.ROOT_LRLAT;
+    private static final double ROOT_LON_DPP = ROOT_WIDTH / MapServer.TILE_SIZE;
+
+    private final QuadTree tree;
+
+    public RasterPlanner(QuadTree tree) {
+        this.tree = tree;
+    }
+
+    /**
+     * The shallowest depth whose tiles have a smaller LonDPP than <code>lonDPP</code>, or the
+     * deepest available depth if even those are too coarse.
+     */
+    public static int depthFor(double lonDPP) {
+        double ratio = ROOT_LON_DPP / lonDPP;
+        int depth = ratio < 1 ? 0 : Math.getExponent(ratio) + 1;
+        depth = Math.max(0, Math.min(QuadTree.MAX_DEPTH, depth));
+        /* Settle rounding at exact powers of two against the tiles' own LonDPP. */
+        while (depth > 0 && tileLonDPP(depth - 1) < lonDPP) {
+            depth--;
+        }
+        while (depth < QuadTree.MAX_DEPTH && !(tileLonDPP(depth) < lonDPP)) {
+            depth++;
+        }
+        return depth;
+    }
+
+    private static double tileLonDPP(int depth) {
+        return Math.scalb(ROOT_LON_DPP, -depth);
+    }
+
+    /**
+     * @return The tiles intersecting the query box, edges included, at the depth its LonDPP
+     * calls for.
+     */
+    public RasterPlan plan(RasterQuery query) {
+        int depth = depthFor(query.lonDPP());
+        int side = 1 << depth;
+        double tileWidth = Math.scalb(ROOT_WIDTH, -depth);
+        double tileHeight = Math.scalb(ROOT_HEIGHT, -depth);
+        /* Tile i spans [i, i + 1] tile widths from the root's edge; it touches a query spanning
+         * [lo, hi] widths when i <= hi and i + 1 >= lo. */
+        int minCol = Math.max(0,
+                (int) Math.ceil((query.ullon - MapServer.ROOT_ULLON) / tileWidth) - 1);
+        int maxCol = Math.min(side - 1,
+                (int) Math.floor((query.lrlon - MapServer.ROOT_ULLON) / tileWidth));
+        int minRow = Math.max(0,
+                (int) Math.ceil((MapServer.ROOT_ULLAT - query.ullat) / tileHeight) - 1);
+        int maxRow = Math.min(side - 1,
+                (int) Math.floor((MapServer.ROOT_ULLAT - query.lrlat) / tileHeight));
+        if (minCol > maxCol || minRow > maxRow) {
+            return new RasterPlan(depth, 0, -1, 0, -1, Collections.emptyList());
+        }
+
+        ArrayList<QTreeNode> tiles =
+                new ArrayList<>((maxRow - minRow + 1) * (maxCol - minCol + 1));
+        for (int row = minRow; row <= maxRow; row++) {
+            for (int col = minCol; col <= maxCol; col++) {
+                tiles.add(tree.tile(depth, row, col));
+            }
+        }
+        return new RasterPlan(depth, minRow, maxRow, minCol, maxCol, tiles);
+    }
+}
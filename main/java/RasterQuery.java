@@ -0,0 +1,46 @@
+import java.util.Map;
+
+/**
+ * The box a raster request asks for and the size of the viewport it will be shown in.
+ * Longitude grows to the right (lrlon > ullon) and latitude grows upward (ullat > lrlat).
+ */
+public class RasterQuery {
+    public final double ullon;
+    public final double ullat;
+    public final double lrlon;
+    public final double lrlat;
+    /** Viewport width in pixels. */
+    public final double width;
+    /** Viewport height in pixels. */
+    public final double height;
+
+    public RasterQuery(double ullon, double ullat, double lrlon, double lrlat,
+                       double width, double height) {
+        this.ullon = ullon;
+        this.ullat = ullat;
+        this.lrlon = lrlon;
+        this.lrlat = lrlat;
+        this.width = width;
+        this.height = height;
+    }
+
+    /**
+     * @param params Raster request parameters keyed as in MapServer:
+     *               ullat, ullon, lrlat, lrlon, w and h.
+     */
+    public static RasterQuery fromParams(Map<String, Double> params) {
+        return new RasterQuery(params.get("ullon"), params.get("ullat"), params.get("lrlon"),
+                params.get("lrlat"), params.get("w"), params.get("h"));
+    }
+
+    /** Longitudinal distance per pixel the viewport asks for. */
+    public double lonDPP() {
+        return (lrlon - ullon) / width;
+    }
+
+    @Override
+    public String toString() {
+        return "RasterQuery{ullon=" + ullon + ", ullat=" + ullat + ", lrlon=" + lrlon
+                + ", lrlat=" + lrlat + ", w=" + width + ", h=" + height + "}";
+    }
+}
@@ -0,0 +1,51 @@
+import java.util.Base64;
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * A finished raster: the response parameters described in MapServer.getMapRaster and, when the
+ * query succeeded, the encoded JPEG. Instances are immutable and may be shared between requests.
+ */
+public class RenderedRaster {
+    private final Map<String, Object> params;
+    private final byte[] jpeg;
+    private volatile String base64;
+
+    /**
+     * @param params Raster response parameters; not copied, so the caller must not change them.
+     * @param jpeg Encoded image, or null if the query failed.
+     */
+    RenderedRaster(Map<String, Object> params, byte[] jpeg) {
+        this.params = Collections.unmodifiableMap(params);
+        this.jpeg = jpeg;
+    }
+
+    /** The raster_*, depth and query_success response parameters. */
+    public Map<String, Object> params() {
+        return params;
+    }
+
+    public boolean succeeded() {
+        return jpeg != null;
+    }
+
+    /** The encoded image, or null if the query failed. Must not be modified. */
+    public byte[] jpeg() {
+        return jpeg;
+    }
+
+    /** The encoded image in Base64, computed on first use. */
+    public String base64() {
+        String encoded = base64;
+        if (encoded == null && jpeg != null) {
+            encoded = Base64.getEncoder().encodeToString(jpeg);
+            base64 = encoded;
+        }
+        return encoded;
+    }
+
+    /** Upper bound on the bytes this raster holds once its Base64 form has been computed. */
+    long weight() {
+        return jpeg == null ? 0 : jpeg.length + (jpeg.length + 2) / 3 * 4L;
+    }
+}
@@ -0,0 +1,459 @@
+import java.util.Arrays;
+
+/**
+ * Immutable road graph in compressed sparse row form. Nodes are numbered densely from 0, and
+ * their OSM ids and coordinates live in parallel primitive arrays.
+ * <p>
+ * Only junctions, the nodes in <code>[0, junctionCount())</code>, have edges: the neighbors of
+ * junction <code>v</code> are <code>target(e)</code> for <code>e</code> in
+ * <code>[firstEdge(v), firstEdge(v + 1))</code>. Each edge follows a chain, a stretch of road
+ * between two junctions whose interior nodes all have exactly two neighbors. Those interior
+ * shape points are numbered after the junctions, each chain's in order, so routers search only
+ * the junctions while routes can still be drawn and reported node by node. Roads are two-way,
+ * so every chain is stored once in each direction. Edges are weighted by the chain's euclidean
+ * length in (lon, lat) space.
+ * </p>
+ * A graph fresh from a Builder has no shape points: every node is a junction and every segment
+ * its own chain. GraphDB compresses it with GraphCleaner.
+ */
+public class RoadGraph {
+    private final long[] ids;
+    private final double[] lon;
+    private final double[] lat;
+    private final int junctionCount;
+    private final int[] offsets;
+    private final int[] targets;
+    /** The chain each edge follows: c when walked from chainFrom(c), ~c when walked back. */
+    private final int[] edgeChains;
+    /** The shape points of chain c are the nodes [chainShapes[c], chainShapes[c + 1]). */
+    private final int[] chainShapes;
+    private final int[] chainFrom;
+    private final int[] chainTo;
+    private final double[] chainLength;
+    /** Distance of each shape point from the start of its chain, by node - junctionCount. */
+    private final double[] shapeDistance;
+    private final LongIntHashMap index;
+
+    /**
+     * @param ids OSM id of every node, junctions first.
+     * @param offsets (junctionCount + 1) edge offsets.
+     * @param targets Target junction of each edge.
+     * @param edgeChains The chain each edge follows, or its complement if walked backwards.
+     * @param chainShapes (chainCount + 1) offsets of each chain's shape points among the nodes,
+     *                    starting at junctionCount and ending at ids.length.
+     */
+    RoadGraph(long[] ids, double[] lon, double[] lat, int junctionCount, int[] offsets,
+              int[] targets, int[] edgeChains, int[] chainShapes) {
+        this.ids = ids;
+        this.lon = lon;
+        this.lat = lat;
+        this.junctionCount = junctionCount;
+        this.offsets = offsets;
+        this.targets = targets;
+        this.edgeChains = edgeChains;
+        this.chainShapes = chainShapes;
+        int chains = chainShapes.length - 1;
+        chainFrom = new int[chains];
+        chainTo = new int[chains];
+        for (int v = 0; v < junctionCount; v++) {
+            for (int e = offsets[v]; e < offsets[v + 1]; e++) {
+                if (edgeChains[e] >= 0) {
+                    chainFrom[edgeChains[e]] = v;
+                    chainTo[edgeChains[e]] = targets[e];
+                }
+            }
+        }
+        chainLength = new double[chains];
+        shapeDistance = new double[ids.length - junctionCount];
+        for (int c = 0; c < chains; c++) {
+            double d = 0;
+            int prev = chainFrom[c];
+            for (int s = chainShapes[c]; s < chainShapes[c + 1]; s++) {
+                d += MapServer.h(lon[prev], lat[prev], lon[s], lat[s]);
+                shapeDistance[s - junctionCount] = d;
+                prev = s;
+            }
+            chainLength[c] = d + MapServer.h(lon[prev], lat[prev], lon[chainTo[c]],
+                    lat[chainTo[c]]);
+        }
+        this.index = new LongIntHashMap(ids.length);
+        for (int v = 0; v < ids.length; v++) {
+            index.put(ids[v], v);
+        }
+    }
+
+    /** Number of nodes, junctions and shape points. */
+    public int size() {
+        return ids.length;
+    }
+
+    /** Number of nodes with edges; they are numbered first. */
+    public int junctionCount() {
+        return junctionCount;
+    }
+
+    public boolean isJunction(int v) {
+        return v < junctionCount;
+    }
+
+    /** Number of directed edges, i.e. twice the number of chains. */
+    public int edgeCount() {
+        return targets.length;
+    }
+
+    public int chainCount() {
+        return chainFrom.length;
+    }
+
+    public long id(int v) {
+        return ids[v];
+    }
+
+    public double lon(int v) {
+        return lon[v];
+    }
+
+    public double lat(int v) {
+        return lat[v];
+    }
+
+    /**
+     * @return The node index of OSM node <code>id</code>, or -1 if it is not on the graph.
+     */
+    public int indexOf(long id) {
+        return index.get(id);
+    }
+
+    /** Index of the first edge leaving junction <code>v</code>; firstEdge(v + 1) ends it. */
+    public int firstEdge(int v) {
+        return offsets[v];
+    }
+
+    public int target(int e) {
+        return targets[e];
+    }
+
+    public int degree(int v) {
+        return offsets[v + 1] - offsets[v];
+    }
+
+    /** Length of edge <code>e</code> along its chain, in degrees. */
+    public double weight(int e) {
+        return chainLength[chain(e)];
+    }
+
+    /** The junction edge <code>e</code> leaves. */
+    public int source(int e) {
+        int c = edgeChains[e];
+        return c >= 0 ? chainFrom[c] : chainTo[~c];
+    }
+
+    /** The chain edge <code>e</code> follows. */
+    public int chain(int e) {
+        int c = edgeChains[e];
+        return c >= 0 ? c : ~c;
+    }
+
+    public int chainFrom(int c) {
+        return chainFrom[c];
+    }
+
+    public int chainTo(int c) {
+        return chainTo[c];
+    }
+
+    public double chainLength(int c) {
+        return chainLength[c];
+    }
+
+    /** The chain shape point <code>v</code> lies on. */
+    public int chainOf(int v) {
+        int c = Arrays.binarySearch(chainShapes, v);
+        if (c < 0) {
+            return -c - 2;
+        }
+        /* Chains without shape points share their offset with the next; take the last. */
+        while (c + 1 < chainShapes.length && chainShapes[c + 1] == v) {
+            c++;
+        }
+        return c;
+    }
+
+    /*
+     * Where a route can enter or leave the graph of junctions at node v: a junction only
+     * through itself, a shape point through either end of its chain.
+     */
+
+    /** Number of ways out of node <code>v</code>: 1 for a junction, 2 for a shape point. */
+    public int exitCount(int v) {
+        return v < junctionCount ? 1 : 2;
+    }
+
+    /** The junction reached by way out <code>i</code> of node <code>v</code>. */
+    public int exit(int v, int i) {
+        if (v < junctionCount) {
+            return v;
+        }
+        int c = chainOf(v);
+        return i == 0 ? chainFrom[c] : chainTo[c];
+    }
+
+    /** Distance along the chain from node <code>v</code> to exit(v, i). */
+    public double exitDistance(int v, int i) {
+        if (v < junctionCount) {
+            return 0;
+        }
+        double d = shapeDistance[v - junctionCount];
+        return i == 0 ? d : chainLength[chainOf(v)] - d;
+    }
+
+    /**
+     * @return The distance between <code>a</code> and <code>b</code> along the chain they are
+     * both shape points of, or infinity if they are not on the same chain.
+     */
+    public double distanceAlongChain(int a, int b) {
+        if (a < junctionCount || b < junctionCount || chainOf(a) != chainOf(b)) {
+            return Double.POSITIVE_INFINITY;
+        }
+        return Math.abs(shapeDistance[a - junctionCount] - shapeDistance[b - junctionCount]);
+    }
+
+    /* Assembling routes node by node. */
+
+    /** Append the nodes after <code>v</code> up to and including exit(v, i). */
+    void walkToExit(int v, int i, Path path) {
+        if (v < junctionCount) {
+            return;
+        }
+        int c = chainOf(v);
+        if (i == 0) {
+            for (int s = v - 1; s >= chainShapes[c]; s--) {
+                path.add(s);
+            }
+            path.add(chainFrom[c]);
+        } else {
+            for (int s = v + 1; s < chainShapes[c + 1]; s++) {
+                path.add(s);
+            }
+            path.add(chainTo[c]);
+        }
+    }
+
+    /** Append the nodes after exit(v, i) up to and including <code>v</code>. */
+    void walkFromExit(int v, int i, Path path) {
+        if (v < junctionCount) {
+            return;
+        }
+        int c = chainOf(v);
+        if (i == 0) {
+            for (int s = chainShapes[c]; s <= v; s++) {
+                path.add(s);
+            }
+        } else {
+            for (int s = chainShapes[c + 1] - 1; s >= v; s--) {
+                path.add(s);
+            }
+        }
+    }
+
+    /** Append the shape points along edge <code>e</code> and then its target. */
+    void walkEdge(int e, Path path) {
+        walkChain(chain(e), edgeChains[e] >= 0, path);
+    }
+
+    /** Append the shape points along edge <code>e</code>, walked back, and then its source. */
+    void walkEdgeBackwards(int e, Path path) {
+        walkChain(chain(e), edgeChains[e] < 0, path);
+    }
+
+    /**
+     * Append the shape points of chain <code>c</code> and then the junction it leads to.
+     * @param forward Whether the chain is walked from chainFrom(c) to chainTo(c).
+     */
+    void walkChain(int c, boolean forward, Path path) {
+        if (forward) {
+            for (int s = chainShapes[c]; s < chainShapes[c + 1]; s++) {
+                path.add(s);
+            }
+            path.add(chainTo[c]);
+        } else {
+            for (int s = chainShapes[c + 1] - 1; s >= chainShapes[c]; s--) {
+                path.add(s);
+            }
+            path.add(chainFrom[c]);
+        }
+    }
+
+    /** Append the nodes after shape point <code>a</code> up to and including <code>b</code>. */
+    void walkAlongChain(int a, int b, Path path) {
+        int step = b > a ? 1 : -1;
+        for (int s = a + step; s != b + step; s += step) {
+            path.add(s);
+        }
+    }
+
+    /** A growable list of node indexes that a route is assembled in. */
+    static class Path {
+        private int[] nodes = new int[64];
+        private int length;
+
+        void clear() {
+            length = 0;
+        }
+
+        void add(int v) {
+            if (length == nodes.length) {
+                nodes = Arrays.copyOf(nodes, length * 2);
+            }
+            nodes[length++] = v;
+        }
+
+        int[] toArray() {
+            return Arrays.copyOf(nodes, length);
+        }
+    }
+
+    /* Raw arrays, for the snapshot writer and GraphCleaner. */
+
+    long[] ids() {
+        return ids;
+    }
+
+    double[] lons() {
+        return lon;
+    }
+
+    double[] lats() {
+        return lat;
+    }
+
+    int[] offsets() {
+        return offsets;
+    }
+
+    int[] targets() {
+        return targets;
+    }
+
+    int[] edgeChains() {
+        return edgeChains;
+    }
+
+    int[] chainShapes() {
+        return chainShapes;
+    }
+
+    /**
+     * Accumulates nodes and two-way road segments in primitive buffers and packs them into a
+     * RoadGraph. Duplicate segments and self-loops are dropped; otherwise each node keeps its
+     * neighbors in the order the segments were added.
+     */
+    public static class Builder {
+        private long[] ids = new long[1024];
+        private double[] lon = new double[1024];
+        private double[] lat = new double[1024];
+        private int nodeCount;
+        private final LongIntHashMap index = new LongIntHashMap(1024);
+        /* Segment endpoints, packed as from, to, from, to... */
+        private int[] segments = new int[2048];
+        private int segmentCount;
+
+        /**
+         * Add a node if it is not present yet.
+         * @return The node's index in the graph being built.
+         */
+        public int addNode(long id, double nodeLon, double nodeLat) {
+            int v = index.get(id);
+            if (v >= 0) {
+                return v;
+            }
+            if (nodeCount == ids.length) {
+                ids = Arrays.copyOf(ids, nodeCount * 2);
+                lon = Arrays.copyOf(lon, nodeCount * 2);
+                lat = Arrays.copyOf(lat, nodeCount * 2);
+            }
+            ids[nodeCount] = id;
+            lon[nodeCount] = nodeLon;
+            lat[nodeCount] = nodeLat;
+            index.put(id, nodeCount);
+            return nodeCount++;
+        }
+
+        /** Add a two-way segment between two node indexes returned by addNode. */
+        public void addSegment(int from, int to) {
+            if (from == to) {
+                return;
+            }
+            if (segmentCount * 2 == segments.length) {
+                segments = Arrays.copyOf(segments, segments.length * 2);
+            }
+            segments[segmentCount * 2] = from;
+            segments[segmentCount * 2 + 1] = to;
+            segmentCount++;
+        }
+
+        /** The graph so far, with every node a junction and every segment a chain. */
+        public RoadGraph build() {
+            int[] offsets = new int[nodeCount + 1];
+            for (int i = 0; i < segmentCount * 2; i++) {
+                offsets[segments[i] + 1]++;
+            }
+            for (int v = 0; v < nodeCount; v++) {
+                offsets[v + 1] += offsets[v];
+            }
+            int[] fill = Arrays.copyOf(offsets, nodeCount);
+            int[] targets = new int[offsets[nodeCount]];
+            for (int s = 0; s < segmentCount; s++) {
+                int from = segments[s * 2];
+                int to = segments[s * 2 + 1];
+                targets[fill[from]++] = to;
+                targets[fill[to]++] = from;
+            }
+
+            /* Squeeze out repeated neighbors in place, keeping first occurrences. */
+            int[] lastSeen = new int[nodeCount];
+            Arrays.fill(lastSeen, -1);
+            int write = 0;
+            int start = 0;
+            for (int v = 0; v < nodeCount; v++) {
+                int end = offsets[v + 1];
+                offsets[v] = write;
+                for (int e = start; e < end; e++) {
+                    int w = targets[e];
+                    if (lastSeen[w] != v) {
+                        lastSeen[w] = v;
+                        targets[write++] = w;
+                    }
+                }
+                start = end;
+            }
+            offsets[nodeCount] = write;
+            targets = Arrays.copyOf(targets, write);
+
+            /* Number each segment as a chain running from its lower end. */
+            int[] edgeChains = new int[write];
+            int chains = 0;
+            for (int v = 0; v < nodeCount; v++) {
+                for (int e = offsets[v]; e < offsets[v + 1]; e++) {
+                    int w = targets[e];
+                    if (w > v) {
+                        edgeChains[e] = chains;
+                        for (int f = offsets[w]; f < offsets[w + 1]; f++) {
+                            if (targets[f] == v) {
+                                edgeChains[f] = ~chains;
+                                break;
+                            }
+                        }
+                        chains++;
+                    }
+                }
+            }
+            int[] chainShapes = new int[chains + 1];
+            Arrays.fill(chainShapes, nodeCount);
+
+            return new RoadGraph(Arrays.copyOf(ids, nodeCount), Arrays.copyOf(lon, nodeCount),
+                    Arrays.copyOf(lat, nodeCount), nodeCount, offsets, targets, edgeChains,
+                    chainShapes);
+        }
+    }
+}
@@ -0,0 +1,19 @@
+/**
+ * A point-to-point shortest-path search over a RoadGraph. Implementations keep reusable
+ * per-search state and are not thread-safe.
+ */
+public interface Router {
+    /** The graph this router searches. */
+    RoadGraph graph();
+
+    /**
+     * Find the shortest route between two nodes.
+     * @param start Index of the first node.
+     * @param end Index of the last node.
+     * @return Node indexes from start to end inclusive, or an empty array if end is unreachable.
+     */
+    int[] route(int start, int end);
+
+    /** Number of nodes settled by the last search. */
+    int settledCount();
+}
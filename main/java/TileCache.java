@@ -0,0 +1,53 @@
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+
+/**
+ * Holds decoded map tiles, by QTreeNode name, within a memory budget. Tiles that are not cached
+ * are read through to a Loader and may be evicted again at any time, so callers should not hold
+ * on to them longer than one request.
+ */
+public interface TileCache {
+    /**
+     * @param name Quadtree name of the tile, e.g. "root" or "1423".
+     * @return The decoded tile, loaded first if it is not cached.
+     * @throws IOException If the tile is not cached and cannot be loaded.
+     */
+    BufferedImage get(String name) throws IOException;
+
+    /**
+     * @param name Quadtree name of the tile.
+     * @return The tile if it is cached, without loading it otherwise. Only a hit is counted.
+     */
+    BufferedImage getIfPresent(String name);
+
+    /**
+     * Load a tile ahead of it being asked for, unless it is already cached. This counts neither
+     * a hit nor a miss, so those keep describing the tiles requests asked for.
+     * @param name Quadtree name of the tile.
+     * @throws IOException If the tile cannot be loaded.
+     */
+    void prefetch(String name) throws IOException;
+
+    /** Whether the tile called <code>name</code> is cached. Counts neither a hit nor a miss. */
+    boolean contains(String name);
+
+    /** Drop every cached tile, so the next lookup of each has to load it. */
+    void clear();
+
+    /** Lookups answered from the cache. */
+    long hits();
+
+    /** Lookups that had to load the tile. */
+    long misses();
+
+    /** Tiles dropped to stay within the budget. */
+    long evictions();
+
+    /** Estimated bytes of pixel data currently held. */
+    long weight();
+
+    /** Reads a tile from its backing store. */
+    interface Loader {
+        BufferedImage load(String name) throws IOException;
+    }
+}
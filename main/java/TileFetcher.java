@@ -0,0 +1,130 @@
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Fetches the tiles of one raster through a TileCache, loading the ones that are not cached in
+ * parallel on a pool shared by all requests. Each request keeps at most <code>parallelism</code>
+ * loads in flight, so one large raster cannot occupy the whole pool while others wait.
+ * <p>
+ * Tiles are handed to the caller's Sink on the calling thread as soon as each is ready: cached
+ * tiles first, in order, then loaded ones in the order they finish.
+ * </p>
+ */
+public class TileFetcher {
+    private final TileCache cache;
+    private final ExecutorService pool;
+    private final int parallelism;
+
+    /** Receives the tiles of a fetch, on the thread that called fetch. */
+    public interface Sink {
+        /**
+         * @param index Position of the tile in the list passed to fetch.
+         * @param tile The tile, or null if it could not be loaded.
+         */
+        void accept(int index, BufferedImage tile);
+    }
+
+    /**
+     * @param cache Cache the tiles are read through.
+     * @param threads Size of the shared loading pool.
+     * @param parallelism Most loads one fetch may have in flight at once.
+     */
+    public TileFetcher(TileCache cache, int threads, int parallelism) {
+        this.cache = cache;
+        this.parallelism = Math.max(1, parallelism);
+        this.pool = Executors.newFixedThreadPool(Math.max(1, threads), new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "tile-fetch-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Hand every tile named in <code>names</code> to <code>sink</code>, each exactly once.
+     * @param names Quadtree names of the tiles.
+     */
+    public void fetch(List<String> names, Sink sink) {
+        List<Integer> missing = new ArrayList<>();
+        for (int i = 0; i < names.size(); i++) {
+            BufferedImage tile = cache.getIfPresent(names.get(i));
+            if (tile != null) {
+                sink.accept(i, tile);
+            } else {
+                missing.add(i);
+            }
+        }
+        if (missing.size() == 1) {
+            int index = missing.get(0);
+            sink.accept(index, load(names.get(index)));
+        } else if (!missing.isEmpty()) {
+            loadInParallel(names, missing, sink);
+        }
+    }
+
+    private BufferedImage load(String name) {
+        try {
+            return cache.get(name);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private void loadInParallel(List<String> names, List<Integer> missing, Sink sink) {
+        CompletionService<Integer> done = new ExecutorCompletionService<>(pool);
+        BufferedImage[] loaded = new BufferedImage[names.size()];
+        boolean[] delivered = new boolean[names.size()];
+        List<Future<Integer>> inFlight = new ArrayList<>();
+        int submitted = 0;
+        int received = 0;
+        try {
+            while (received < missing.size()) {
+                while (submitted < missing.size() && submitted - received < parallelism) {
+                    int index = missing.get(submitted++);
+                    inFlight.add(done.submit(() -> {
+                        loaded[index] = load(names.get(index));
+                        return index;
+                    }));
+                }
+                /* Future.get orders the write to loaded[index] before our read of it. */
+                int index = done.take().get();
+                received++;
+                delivered[index] = true;
+                sink.accept(index, loaded[index]);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            abandon(inFlight, missing, delivered, sink);
+        } catch (ExecutionException e) {
+            e.printStackTrace();
+            abandon(inFlight, missing, delivered, sink);
+        }
+    }
+
+    /** Stop waiting for outstanding loads and report every undelivered tile as unreadable. */
+    private static void abandon(List<Future<Integer>> inFlight, List<Integer> missing,
+                                boolean[] delivered, Sink sink) {
+        for (Future<Integer> load : inFlight) {
+            load.cancel(false);
+        }
+        for (int index : missing) {
+            if (!delivered[index]) {
+                sink.accept(index, null);
+            }
+        }
+    }
+}
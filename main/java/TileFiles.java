@@ -0,0 +1,97 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The PNG files of single tiles, as served to clients that assemble rasters themselves, with a
+ * strong entity tag per tile. A tile's tag is a hash of its bytes, computed once and kept until
+ * the file's size or modification time changes, so a conditional request can be answered with
+ * a stat and no read.
+ */
+public class TileFiles {
+    private final String root;
+    /** At most one entry per tile of the pyramid, since names are checked before lookup. */
+    private final ConcurrentHashMap<String, Tag> tags = new ConcurrentHashMap<>();
+
+    private static class Tag {
+        private final long modified;
+        private final long length;
+        private final String etag;
+
+        Tag(long modified, long length, String etag) {
+            this.modified = modified;
+            this.length = length;
+            this.etag = etag;
+        }
+    }
+
+    /**
+     * @param root Directory holding the tiles as <code>name.png</code>.
+     */
+    public TileFiles(String root) {
+        this.root = root;
+    }
+
+    /**
+     * @return The file of the tile called <code>name</code>, or null if no tile of the pyramid
+     * has that name or it has no image.
+     */
+    public File file(String name) {
+        if (TileStore.slot(name, QuadTree.MAX_DEPTH) < 0) {
+            return null;
+        }
+        File file = new File(root, name + ".png");
+        return file.isFile() ? file : null;
+    }
+
+    /** @return The quoted strong entity tag of the tile called <code>name</code>. */
+    public String etag(String name, File file) throws IOException {
+        long modified = file.lastModified();
+        long length = file.length();
+        Tag tag = tags.get(name);
+        if (tag == null || tag.modified != modified || tag.length != length) {
+            tag = new Tag(modified, length, hash(Files.readAllBytes(file.toPath())));
+            tags.put(name, tag);
+        }
+        return tag.etag;
+    }
+
+    /** @return The first 128 bits of the SHA-256 of <code>bytes</code>, quoted, in hex. */
+    static String hash(byte[] bytes) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(bytes);
+            StringBuilder etag = new StringBuilder("\"");
+            for (int i = 0; i < 16; i++) {
+                etag.append(Character.forDigit((digest[i] >> 4) & 0xF, 16))
+                        .append(Character.forDigit(digest[i] & 0xF, 16));
+            }
+            return etag.append('"').toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is always available", e);
+        }
+    }
+
+    /**
+     * Whether an If-None-Match header names <code>etag</code>, so the client's copy is current.
+     * As the header requires, weak tags in it are compared by their value alone.
+     * @param ifNoneMatch The header value, or null if absent.
+     */
+    static boolean matches(String ifNoneMatch, String etag) {
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        for (String candidate : ifNoneMatch.split(",")) {
+            candidate = candidate.trim();
+            if (candidate.startsWith("W/")) {
+                candidate = candidate.substring(2);
+            }
+            if (candidate.equals("*") || candidate.equals(etag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,144 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Warms the tile cache around the last raster served, on one low-priority background thread.
+ * After a raster of some tile range, users almost always pan to an adjacent tile or zoom one
+ * level, so the prefetcher loads, in this order: the ring of tiles around the range at the same
+ * depth, the parents of the range one level up, and its children one level down.
+ * <p>
+ * Each run loads at most <code>budget</code> tiles. A run stops as soon as a newer raster
+ * has been scheduled, since the user has moved on, or while more than
+ * <code>maxForeground</code> rasters are being rendered, so prefetching never competes with
+ * the requests it is meant to speed up.
+ * </p>
+ */
+public class TilePrefetcher {
+    private final TileCache cache;
+    private final QuadTree tree;
+    private final int budget;
+    private final int maxForeground;
+    private final ThreadPoolExecutor worker;
+    /** Rasters currently being rendered. */
+    private final AtomicInteger foreground = new AtomicInteger();
+    /** Bumped by every schedule; a run belonging to an older generation is stale. */
+    private final AtomicLong generation = new AtomicLong();
+    private final AtomicLong prefetched = new AtomicLong();
+    private final AtomicLong cancelled = new AtomicLong();
+
+    /**
+     * @param cache Cache to warm.
+     * @param tree Tree naming the tiles.
+     * @param budget Most tiles loaded per scheduled raster.
+     * @param maxForeground Most rasters rendering at once for prefetching to continue.
+     */
+    public TilePrefetcher(TileCache cache, QuadTree tree, int budget, int maxForeground) {
+        this.cache = cache;
+        this.tree = tree;
+        this.budget = budget;
+        this.maxForeground = maxForeground;
+        /* Only the newest raster is worth prefetching around, so at most one run waits. */
+        this.worker = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(1), r -> {
+                    Thread thread = new Thread(r, "tile-prefetch");
+                    thread.setDaemon(true);
+                    thread.setPriority(Thread.MIN_PRIORITY);
+                    return thread;
+                }, new ThreadPoolExecutor.DiscardOldestPolicy());
+    }
+
+    /** Note that a raster has started rendering. Must be paired with endForeground. */
+    public void beginForeground() {
+        foreground.incrementAndGet();
+    }
+
+    public void endForeground() {
+        foreground.decrementAndGet();
+    }
+
+    /** Prefetch around the tiles of <code>plan</code>, abandoning any earlier run. */
+    public void schedule(RasterPlan plan) {
+        if (plan.isEmpty() || budget <= 0) {
+            return;
+        }
+        long run = generation.incrementAndGet();
+        worker.execute(() -> prefetch(plan, run));
+    }
+
+    private void prefetch(RasterPlan plan, long run) {
+        int loads = 0;
+        for (String name : neighbourhood(plan)) {
+            if (loads >= budget) {
+                return;
+            }
+            if (run != generation.get() || foreground.get() > maxForeground) {
+                cancelled.incrementAndGet();
+                return;
+            }
+            if (cache.contains(name)) {
+                continue;
+            }
+            loads++;
+            try {
+                cache.prefetch(name);
+                prefetched.incrementAndGet();
+            } catch (IOException e) {
+                /* Not every depth has images everywhere; there is nothing to warm. */
+            }
+        }
+    }
+
+    /** Names of the tiles around <code>plan</code>, most likely to be needed first. */
+    List<String> neighbourhood(RasterPlan plan) {
+        List<String> names = new ArrayList<>();
+        int depth = plan.depth();
+        int last = (1 << depth) - 1;
+        int top = Math.max(plan.minRow() - 1, 0);
+        int bottom = Math.min(plan.maxRow() + 1, last);
+        int left = Math.max(plan.minCol() - 1, 0);
+        int right = Math.min(plan.maxCol() + 1, last);
+        for (int row = top; row <= bottom; row++) {
+            for (int col = left; col <= right; col++) {
+                boolean inside = row >= plan.minRow() && row <= plan.maxRow()
+                        && col >= plan.minCol() && col <= plan.maxCol();
+                if (!inside) {
+                    names.add(tree.tile(depth, row, col).getName());
+                }
+            }
+        }
+        if (depth > 0) {
+            addRange(names, depth - 1, plan.minRow() >> 1, plan.maxRow() >> 1,
+                    plan.minCol() >> 1, plan.maxCol() >> 1);
+        }
+        if (depth < QuadTree.MAX_DEPTH) {
+            addRange(names, depth + 1, plan.minRow() << 1, (plan.maxRow() << 1) + 1,
+                    plan.minCol() << 1, (plan.maxCol() << 1) + 1);
+        }
+        return names;
+    }
+
+    private void addRange(List<String> names, int depth, int minRow, int maxRow, int minCol,
+                          int maxCol) {
+        for (int row = minRow; row <= maxRow; row++) {
+            for (int col = minCol; col <= maxCol; col++) {
+                names.add(tree.tile(depth, row, col).getName());
+            }
+        }
+    }
+
+    /** Tiles loaded into the cache by prefetching. */
+    public long prefetched() {
+        return prefetched.get();
+    }
+
+    /** Runs stopped early because of a newer raster or foreground load. */
+    public long cancelled() {
+        return cancelled.get();
+    }
+}
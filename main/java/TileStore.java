@@ -0,0 +1,266 @@
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.imageio.ImageIO;
+
+/**
+ * Every tile of the quadtree pyramid, decoded once and packed into a single file of raw RGB
+ * pixels. Packing with <code>java TileStore img/</code> lets the server memory-map one file
+ * and copy a tile's pixels straight into an image, instead of opening a PNG and inflating it
+ * on every tile miss. Re-pack after changing the tiles; the store is not checked against them.
+ * <p>
+ * Tiles are indexed by slot: depth by depth from the root, and row-major within a depth, the
+ * same order QuadTree keeps its levels in. Layout (big-endian): <br>
+ * header  -> int magic, int version, int maxDepth, int slotCount <br>
+ * offsets -> slotCount x long, the file offset of each tile, or -1 if it has no image <br>
+ * tiles   -> int width, int height, width x height int pixels as TYPE_INT_RGB stores them
+ * </p>
+ */
+public class TileStore {
+    /** "BMTL" in ASCII. */
+    private static final int MAGIC = 0x424D544C;
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 4 * Integer.BYTES;
+    /** Mapped segments stay well under the 2GB a single MappedByteBuffer can address. */
+    private static final long MAX_SEGMENT_BYTES = 1L << 30;
+
+    private final int maxDepth;
+    private final MappedByteBuffer[] segments;
+    /** For each slot, the segment holding its tile and where in it, or -1 if it has none. */
+    private final int[] segmentOf;
+    private final int[] positionOf;
+
+    private TileStore(int maxDepth, MappedByteBuffer[] segments, int[] segmentOf,
+                      int[] positionOf) {
+        this.maxDepth = maxDepth;
+        this.segments = segments;
+        this.segmentOf = segmentOf;
+        this.positionOf = positionOf;
+    }
+
+    /**
+     * Packs the PNG tiles in the directory given as the first argument (img/ by default) into
+     * the file given as the second (tiles.pack in that directory by default).
+     */
+    public static void main(String[] args) throws IOException {
+        String imgRoot = args.length > 0 ? args[0] : "img/";
+        File out = new File(args.length > 1 ? args[1] : new File(imgRoot, "tiles.pack").getPath());
+        int packed = write(out, new QuadTree(), imgRoot);
+        System.out.println("Packed " + packed + " tiles into " + out + " (" + out.length()
+                + " bytes)");
+    }
+
+    /** Number of slots in a pyramid of the given depth. */
+    static int slotCount(int maxDepth) {
+        return levelStart(maxDepth + 1);
+    }
+
+    /** The first slot of <code>depth</code>: there are (4^depth - 1) / 3 tiles above it. */
+    private static int levelStart(int depth) {
+        return ((1 << (2 * depth)) - 1) / 3;
+    }
+
+    /**
+     * @return The slot of the tile called <code>name</code> ("root", or up to maxDepth of the
+     * digits 1 to 4, each picking a quadrant in reading order), or -1 if no tile has that name.
+     */
+    static int slot(String name, int maxDepth) {
+        if (name.equals("root")) {
+            return 0;
+        }
+        int depth = name.length();
+        if (depth == 0 || depth > maxDepth) {
+            return -1;
+        }
+        int row = 0;
+        int col = 0;
+        for (int i = 0; i < depth; i++) {
+            int quadrant = name.charAt(i) - '1';
+            if (quadrant < 0 || quadrant > 3) {
+                return -1;
+            }
+            row = (row << 1) | (quadrant >> 1);
+            col = (col << 1) | (quadrant & 1);
+        }
+        return levelStart(depth) + (row << depth) + col;
+    }
+
+    /**
+     * Decode every tile of <code>tree</code> found under <code>imgRoot</code> and write them to
+     * <code>file</code>.
+     * @return The number of tiles written.
+     */
+    static int write(File file, QuadTree tree, String imgRoot) throws IOException {
+        int maxDepth = QuadTree.MAX_DEPTH;
+        long[] offsets = new long[slotCount(maxDepth)];
+        Arrays.fill(offsets, -1);
+        int packed = 0;
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            long position = HEADER_BYTES + (long) offsets.length * Long.BYTES;
+            for (int depth = 0; depth <= maxDepth; depth++) {
+                for (int row = 0; row < 1 << depth; row++) {
+                    for (int col = 0; col < 1 << depth; col++) {
+                        String name = tree.tile(depth, row, col).getName();
+                        File png = new File(imgRoot, name + ".png");
+                        BufferedImage tile = png.isFile() ? ImageIO.read(png) : null;
+                        if (tile == null) {
+                            continue;
+                        }
+                        ByteBuffer record = encode(RasterComposer.toIntRgb(tile));
+                        offsets[slot(name, maxDepth)] = position;
+                        position += writeFully(channel, record, position);
+                        packed++;
+                    }
+                }
+            }
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES + offsets.length * Long.BYTES);
+            header.putInt(MAGIC).putInt(VERSION).putInt(maxDepth).putInt(offsets.length);
+            header.asLongBuffer().put(offsets);
+            header.rewind();
+            writeFully(channel, header, 0);
+        }
+        return packed;
+    }
+
+    private static ByteBuffer encode(BufferedImage tile) {
+        int[] pixels = ((DataBufferInt) tile.getRaster().getDataBuffer()).getData();
+        ByteBuffer record = ByteBuffer.allocate(2 * Integer.BYTES + pixels.length * Integer.BYTES);
+        record.putInt(tile.getWidth()).putInt(tile.getHeight());
+        record.asIntBuffer().put(pixels);
+        record.rewind();
+        return record;
+    }
+
+    private static int writeFully(FileChannel channel, ByteBuffer buf, long position)
+            throws IOException {
+        int length = buf.remaining();
+        while (buf.hasRemaining()) {
+            channel.write(buf, position + length - buf.remaining());
+        }
+        return length;
+    }
+
+    /**
+     * Memory-map a packed store.
+     * @throws IOException If the file is unreadable, truncated, or of another version.
+     */
+    public static TileStore open(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            ByteBuffer header = readFully(channel, HEADER_BYTES, 0);
+            if (header == null || header.getInt() != MAGIC) {
+                throw new IOException(file + " is not a tile store");
+            }
+            int version = header.getInt();
+            if (version != VERSION) {
+                throw new IOException(file + " has version " + version + ", expected " + VERSION);
+            }
+            int maxDepth = header.getInt();
+            int slots = header.getInt();
+            if (maxDepth < 0 || maxDepth > QuadTree.MAX_DEPTH || slots != slotCount(maxDepth)) {
+                throw new IOException(file + " has an inconsistent header");
+            }
+            ByteBuffer index = readFully(channel, slots * Long.BYTES, HEADER_BYTES);
+            if (index == null) {
+                throw new IOException(file + " is truncated");
+            }
+            long[] offsets = new long[slots];
+            index.asLongBuffer().get(offsets);
+
+            /* Tiles were written back to back, so each one ends where the next one starts. */
+            Integer[] order = new Integer[slots];
+            int present = 0;
+            for (int s = 0; s < slots; s++) {
+                if (offsets[s] >= 0) {
+                    order[present++] = s;
+                }
+            }
+            Arrays.sort(order, 0, present, (a, b) -> Long.compare(offsets[a], offsets[b]));
+
+            int[] segmentOf = new int[slots];
+            int[] positionOf = new int[slots];
+            Arrays.fill(segmentOf, -1);
+            List<MappedByteBuffer> segments = new ArrayList<>();
+            int first = 0;
+            while (first < present) {
+                long start = offsets[order[first]];
+                int last = first;
+                while (last + 1 < present && end(offsets, order, last + 1, present, size) - start
+                        <= MAX_SEGMENT_BYTES) {
+                    last++;
+                }
+                long end = end(offsets, order, last, present, size);
+                if (end > size || end - start > MAX_SEGMENT_BYTES) {
+                    throw new IOException(file + " is corrupt");
+                }
+                for (int i = first; i <= last; i++) {
+                    segmentOf[order[i]] = segments.size();
+                    positionOf[order[i]] = (int) (offsets[order[i]] - start);
+                }
+                segments.add(channel.map(FileChannel.MapMode.READ_ONLY, start, end - start));
+                first = last + 1;
+            }
+            return new TileStore(maxDepth, segments.toArray(new MappedByteBuffer[0]),
+                    segmentOf, positionOf);
+        }
+    }
+
+    /** @return <code>length</code> bytes from <code>position</code>, or null at end of file. */
+    private static ByteBuffer readFully(FileChannel channel, int length, long position)
+            throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(length);
+        while (buf.hasRemaining()) {
+            if (channel.read(buf, position + buf.position()) < 0) {
+                return null;
+            }
+        }
+        buf.flip();
+        return buf;
+    }
+
+    /** Where the i-th tile in file order ends. */
+    private static long end(long[] offsets, Integer[] order, int i, int present, long size) {
+        return i + 1 < present ? offsets[order[i + 1]] : size;
+    }
+
+    /** Whether the store holds an image for the tile called <code>name</code>. */
+    public boolean contains(String name) {
+        int slot = slot(name, maxDepth);
+        return slot >= 0 && segmentOf[slot] >= 0;
+    }
+
+    /**
+     * @return A new <code>TYPE_INT_RGB</code> image of the tile called <code>name</code>, or
+     * null if the store has none.
+     */
+    public BufferedImage read(String name) throws IOException {
+        int slot = slot(name, maxDepth);
+        if (slot < 0 || segmentOf[slot] < 0) {
+            return null;
+        }
+        /* Absolute reads and a private duplicate leave the shared buffer's position alone. */
+        ByteBuffer segment = segments[segmentOf[slot]].duplicate();
+        int position = positionOf[slot];
+        try {
+            int width = segment.getInt(position);
+            int height = segment.getInt(position + Integer.BYTES);
+            BufferedImage tile = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+            segment.position(position + 2 * Integer.BYTES);
+            segment.asIntBuffer()
+                    .get(((DataBufferInt) tile.getRaster().getDataBuffer()).getData());
+            return tile;
+        } catch (RuntimeException e) {
+            throw new IOException("Tile " + name + " is corrupt", e);
+        }
+    }
+}
@@ -0,0 +1,251 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Inverted index from each word of a location's cleaned name to the locations it appears in,
+ * so a search finds "Joe's Pizza" for "pizza" as well as for "joes", which the Trie cannot
+ * without scanning every name. Locations are numbered in the order they are added, and each
+ * word's posting list holds those numbers in increasing order as varint gaps, all packed into
+ * one array. A search for several words intersects their lists, rarest first.
+ * <p>
+ * Like the Trie, names are added while the graph is built and packed on the first search after,
+ * so additions must not race with searches.
+ * </p>
+ */
+public class TokenIndex {
+    private final ArrayList<GraphNode> locations = new ArrayList<>();
+    /** Location number of each node id, so a node is only indexed once. */
+    private final Map<Long, Integer> locationOf = new HashMap<>();
+    private final Map<String, Postings> postings = new HashMap<>();
+    /** Locations added to each word since the lists were last packed. */
+    private final Map<String, Pending> pending = new HashMap<>();
+    /** Every posting list, one after another. */
+    private byte[] packed = new byte[0];
+    /** Whether the packed lists hold every location added. */
+    private volatile boolean built = true;
+
+    /**
+     * Index a location under every word of its cleaned name. A node whose id is already
+     * indexed, such as one read again by another GraphDB of the same extract, is ignored.
+     * @param node Node with a non-null name.
+     */
+    public synchronized void addNode(GraphNode node) {
+        int location = locations.size();
+        if (locationOf.putIfAbsent(node.id(), location) != null) {
+            return;
+        }
+        locations.add(node);
+        for (String token : tokens(node.getName())) {
+            pending.computeIfAbsent(token, t -> new Pending()).add(location);
+        }
+        built = false;
+    }
+
+    /**
+     * @param query Words to search for, in any case and with or without punctuation.
+     * @return Every location whose cleaned name contains each word of the cleaned
+     * <code>query</code> as a whole word, in the order they were added.
+     */
+    public List<GraphNode> getLocationsWithWords(String query) {
+        List<GraphNode> found = new ArrayList<>();
+        Set<String> tokens = tokens(query);
+        if (tokens.isEmpty()) {
+            return found;
+        }
+        if (!built) {
+            build();
+        }
+        Postings[] lists = new Postings[tokens.size()];
+        int i = 0;
+        for (String token : tokens) {
+            lists[i] = postings.get(token);
+            if (lists[i] == null) {
+                return found;
+            }
+            i++;
+        }
+        Arrays.sort(lists, Comparator.comparingInt(p -> p.count));
+
+        int[] matches = decode(lists[0]);
+        int count = matches.length;
+        for (int j = 1; j < lists.length && count > 0; j++) {
+            count = intersect(matches, count, lists[j]);
+        }
+        for (int j = 0; j < count; j++) {
+            found.add(locations.get(matches[j]));
+        }
+        return found;
+    }
+
+    /** The distinct words of the cleaned <code>name</code>. */
+    private static Set<String> tokens(String name) {
+        Set<String> tokens = new LinkedHashSet<>();
+        for (String token : GraphDB.cleanString(name).split(" ")) {
+            if (!token.isEmpty()) {
+                tokens.add(token);
+            }
+        }
+        return tokens;
+    }
+
+    /** Pack the pending locations onto the end of each word's list. */
+    private synchronized void build() {
+        if (built) {
+            return;
+        }
+        int size = packed.length;
+        for (Map.Entry<String, Pending> e : pending.entrySet()) {
+            Postings old = postings.get(e.getKey());
+            int last = old == null ? 0 : old.last;
+            size += e.getValue().encodedLength(last);
+        }
+        byte[] grown = new byte[size];
+        int pos = 0;
+        for (Map.Entry<String, Postings> e : postings.entrySet()) {
+            Postings p = e.getValue();
+            System.arraycopy(packed, p.offset, grown, pos, p.length);
+            p.offset = pos;
+            pos += p.length;
+            Pending added = pending.remove(e.getKey());
+            if (added != null) {
+                int end = added.encode(p.last, grown, pos);
+                p.length += end - pos;
+                p.count += added.count;
+                p.last = added.locations[added.count - 1];
+                pos = end;
+            }
+        }
+        for (Map.Entry<String, Pending> e : pending.entrySet()) {
+            Pending added = e.getValue();
+            Postings p = new Postings();
+            p.offset = pos;
+            pos = added.encode(0, grown, pos);
+            p.length = pos - p.offset;
+            p.count = added.count;
+            p.last = added.locations[added.count - 1];
+            postings.put(e.getKey(), p);
+        }
+        pending.clear();
+        packed = grown;
+        built = true;
+    }
+
+    private int[] decode(Postings p) {
+        int[] out = new int[p.count];
+        Cursor c = new Cursor(p);
+        for (int i = 0; i < p.count; i++) {
+            out[i] = c.next();
+        }
+        return out;
+    }
+
+    /**
+     * Keep only the first <code>count</code> of <code>matches</code> that are also in
+     * <code>p</code>, decoding it only as far as the last of them.
+     * @return How many are kept, at the front of <code>matches</code>.
+     */
+    private int intersect(int[] matches, int count, Postings p) {
+        Cursor c = new Cursor(p);
+        int location = -1;
+        int kept = 0;
+        for (int i = 0; i < count; i++) {
+            int want = matches[i];
+            while (location < want && c.hasNext()) {
+                location = c.next();
+            }
+            if (location == want) {
+                matches[kept++] = want;
+            } else if (location < want) {
+                break;
+            }
+        }
+        return kept;
+    }
+
+    /** Reads the locations of one posting list in order. */
+    private final class Cursor {
+        private int pos;
+        private final int end;
+        private int location;
+
+        Cursor(Postings p) {
+            pos = p.offset;
+            end = p.offset + p.length;
+        }
+
+        boolean hasNext() {
+            return pos < end;
+        }
+
+        int next() {
+            int gap = 0;
+            for (int shift = 0; ; shift += 7) {
+                byte b = packed[pos++];
+                gap |= (b & 0x7F) << shift;
+                if (b >= 0) {
+                    break;
+                }
+            }
+            location += gap;
+            return location;
+        }
+    }
+
+    /** Where a word's list lies in the packed array, and what it holds. */
+    private static final class Postings {
+        private int offset;
+        private int length;
+        private int count;
+        /** The highest location in the list, which the next gap is counted from. */
+        private int last;
+    }
+
+    /** Locations added to a word, in increasing order, not yet packed. */
+    private static final class Pending {
+        private int[] locations = new int[4];
+        private int count;
+
+        void add(int location) {
+            if (count == locations.length) {
+                locations = Arrays.copyOf(locations, count * 2);
+            }
+            locations[count++] = location;
+        }
+
+        /** Bytes needed to encode these as gaps following <code>last</code>. */
+        int encodedLength(int last) {
+            int length = 0;
+            int prev = last;
+            for (int i = 0; i < count; i++) {
+                int gap = locations[i] - prev;
+                prev = locations[i];
+                do {
+                    length++;
+                    gap >>>= 7;
+                } while (gap != 0);
+            }
+            return length;
+        }
+
+        /** @return The position after the gaps, following <code>last</code>, written at pos. */
+        int encode(int last, byte[] out, int pos) {
+            int prev = last;
+            for (int i = 0; i < count; i++) {
+                int gap = locations[i] - prev;
+                prev = locations[i];
+                while ((gap & ~0x7F) != 0) {
+                    out[pos++] = (byte) ((gap & 0x7F) | 0x80);
+                    gap >>>= 7;
+                }
+                out[pos++] = (byte) gap;
+            }
+            return pos;
+        }
+    }
+}
@@ -1,73 +1,374 @@
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 /**
+ * Location names by cleaned name, for prefix search. This is a radix trie: each edge holds a
+ * run of characters rather than one, so a node only exists where names branch or end, and its
+ * children are kept in arrays sorted by first character. Every node also keeps the best few
+ * names below it under a ranking, so autocompletion costs the length of the prefix plus the
+ * number of names returned, however many names share the prefix.
+ * <p>
+ * Names are added while the graph is built and the rankings computed on the first search after,
+ * so additions must not race with searches.
+ * </p>
  * Created by JunSeong on 8/5/2016.
  */
 public class Trie {
-    private HashMap<Character, TrieNode> myStartingLetters;
+    /** Names shared by the most locations first, then shorter names, then alphabetically. */
+    static final Comparator<Entry> MOST_COMMON = Comparator.comparingInt((Entry e) -> -e.count)
+            .thenComparingInt(e -> e.key.length()).thenComparing(e -> e.key);
+    /** Shorter names first, then alphabetically. */
+    static final Comparator<Entry> SHORTEST = Comparator.comparingInt((Entry e) -> e.key.length())
+            .thenComparing(e -> e.key);
+    /** Alphabetically. */
+    static final Comparator<Entry> ALPHABETICAL = Comparator.comparing(e -> e.key);
+    private static final int DEFAULT_TOP_K = 10;
+
+    private final Node root = new Node("");
+    private final Comparator<Entry> ranking;
+    /** How many of the best names each node keeps. */
+    private final int topK;
+    /** Whether every node's best names are up to date with the names added. */
+    private volatile boolean ranked;
 
     public Trie() {
-        myStartingLetters = new HashMap<>();
+        this(MOST_COMMON, DEFAULT_TOP_K);
     }
 
-    public void addNode(GraphNode node) {
-        String cleaned = GraphDB.cleanString(node.getName());
-        if (cleaned.isEmpty()) {
-            cleaned = node.getName();
-        }
-        if (!myStartingLetters.containsKey(cleaned.charAt(0))) {
-            myStartingLetters.put(cleaned.charAt(0), new TrieNode());
+    /**
+     * @param ranking Order in which names are suggested, best first.
+     * @param topK How many of the best names to keep ready under each prefix.
+     */
+    Trie(Comparator<Entry> ranking, int topK) {
+        this.ranking = ranking;
+        this.topK = Math.max(0, topK);
+    }
+
+    /**
+     * @param name "common", "shortest" or "alphabetical".
+     * @return The ranking called <code>name</code>, or MOST_COMMON if there is none.
+     */
+    static Comparator<Entry> ranking(String name) {
+        switch (name) {
+            case "common":
+                return MOST_COMMON;
+            case "shortest":
+                return SHORTEST;
+            case "alphabetical":
+                return ALPHABETICAL;
+            default:
+                System.out.println("Unknown autocomplete ranking " + name + ", using common");
+                return MOST_COMMON;
         }
-        TrieNode curr = myStartingLetters.get(cleaned.charAt(0));
-        for (int i = 1; i < cleaned.length(); i++) {
-            if (!curr.nextLetters.containsKey(cleaned.charAt(i))) {
-                curr.nextLetters.put(cleaned.charAt(i), new TrieNode());
+    }
+
+    /**
+     * Add a location under its cleaned name; a later location with the same cleaned name
+     * replaces it, though both count towards how common the name is.
+     * @param node Node with a non-null name.
+     */
+    public synchronized void addNode(GraphNode node) {
+        String key = key(node.getName());
+        Node curr = root;
+        int i = 0;
+        while (i < key.length()) {
+            int c = curr.childIndex(key.charAt(i));
+            if (c < 0) {
+                Node leaf = new Node(key.substring(i));
+                curr.insertChild(~c, leaf);
+                curr = leaf;
+                break;
+            }
+            Node child = curr.children[c];
+            int common = commonPrefixLength(child.label, key, i);
+            if (common < child.label.length()) {
+                Node split = new Node(child.label.substring(0, common));
+                child.label = child.label.substring(common);
+                split.insertChild(0, child);
+                curr.children[c] = split;
+                child = split;
             }
-            curr = curr.nextLetters.get(cleaned.charAt(i));
+            curr = child;
+            i += common;
         }
-        curr.myNode = node;
+        if (curr.entry == null) {
+            curr.entry = new Entry(key);
+        }
+        curr.entry.node = node;
+        curr.entry.count++;
+        ranked = false;
     }
 
+    /**
+     * @param prefix Prefix to search for, in any case and with or without punctuation.
+     * @return Every location whose cleaned name starts with the cleaned <code>prefix</code>,
+     * alphabetically by cleaned name.
+     */
     public ArrayList<GraphNode> getWordsWithPrefix(String prefix) {
         ArrayList<GraphNode> words = new ArrayList<>();
-        String cleaned = GraphDB.cleanString(prefix);
-        if (cleaned.isEmpty()) {
-            cleaned = prefix;
+        Node match = find(key(prefix));
+        if (match != null) {
+            collect(match, words);
         }
-        TrieNode curr;
-        if (!myStartingLetters.containsKey(cleaned.charAt(0))) {
+        return words;
+    }
+
+    /**
+     * @param prefix Prefix to search for, in any case and with or without punctuation.
+     * @param k Most locations to return.
+     * @return The best <code>k</code> locations whose cleaned name starts with the cleaned
+     * <code>prefix</code>, best first.
+     */
+    public List<GraphNode> getTopWithPrefix(String prefix, int k) {
+        List<GraphNode> words = new ArrayList<>();
+        Node match = find(key(prefix));
+        if (match == null || k <= 0) {
             return words;
-        } else {
-            curr = myStartingLetters.get(cleaned.charAt(0));
         }
-        for (int i = 1; i < cleaned.length(); i++) {
-            if (!curr.nextLetters.containsKey(cleaned.charAt(i))) {
-                return words;
+        if (k > topK) {
+            List<Entry> entries = new ArrayList<>();
+            collectEntries(match, entries);
+            entries.sort(ranking);
+            for (Entry e : entries.subList(0, Math.min(k, entries.size()))) {
+                words.add(e.node);
             }
-            curr = curr.nextLetters.get(cleaned.charAt(i));
+            return words;
+        }
+        if (!ranked) {
+            rank();
+        }
+        Entry[] top = match.top;
+        for (int i = 0; i < Math.min(k, top.length); i++) {
+            words.add(top[i].node);
         }
-        getWordsHelper(curr, words);
         return words;
     }
 
-    public static void getWordsHelper(TrieNode t, ArrayList<GraphNode> l) {
-        if (t.myNode != null) {
-            l.add(t.myNode);
+    /**
+     * Suggest names for a prefix that may have typos. The trie is walked with the rows of a
+     * Levenshtein automaton for the prefix, one row per character, and a branch is dropped as
+     * soon as no name below it can come within <code>maxEdits</code>, or closer than a match
+     * already found above it. Once the path to a node is close enough, every name below
+     * matches, so that node's ranked names are taken as they are, and the walk only goes deeper
+     * where a closer match is still possible.
+     * @param prefix Prefix to search for, in any case and with or without punctuation.
+     * @param maxEdits Most characters of the cleaned prefix that may be inserted, deleted or
+     *                 replaced to match the start of a name.
+     * @param k Most locations to return.
+     * @return The best <code>k</code> locations whose cleaned name starts within
+     * <code>maxEdits</code> edits of the cleaned <code>prefix</code>; fewest edits first, then
+     * by ranking.
+     */
+    public List<GraphNode> getFuzzyWithPrefix(String prefix, int maxEdits, int k) {
+        List<GraphNode> words = new ArrayList<>();
+        if (k <= 0) {
+            return words;
+        }
+        if (!ranked) {
+            rank();
+        }
+        String query = key(prefix);
+        Map<Entry, Integer> edits = new HashMap<>();
+        int[] row = new int[query.length() + 1];
+        for (int j = 0; j < row.length; j++) {
+            row[j] = j;
+        }
+        int accepted = maxEdits + 1;
+        if (query.length() <= maxEdits) {
+            accepted = query.length();
+            accept(root, accepted, k, edits);
+        }
+        fuzzy(root, query, row, maxEdits, accepted, k, edits);
+
+        List<Entry> matches = new ArrayList<>(edits.keySet());
+        matches.sort(Comparator.comparingInt((Entry e) -> edits.get(e)).thenComparing(ranking));
+        for (Entry e : matches.subList(0, Math.min(k, matches.size()))) {
+            words.add(e.node);
         }
-        if (t.nextLetters.keySet().size() > 0) {
-            for (char key: t.nextLetters.keySet()) {
-                getWordsHelper(t.nextLetters.get(key), l);
+        return words;
+    }
+
+    /**
+     * Follow the children of <code>t</code> whose names could still match.
+     * @param row Edits between each prefix of the query and the path to <code>t</code>.
+     * @param accepted Edits of the closest match at or above <code>t</code>, or more than
+     *                 maxEdits if there is none yet.
+     */
+    private void fuzzy(Node t, String query, int[] row, int maxEdits, int accepted, int k,
+                       Map<Entry, Integer> edits) {
+        int m = query.length();
+        for (int c = 0; c < t.childCount; c++) {
+            Node child = t.children[c];
+            int[] r = row;
+            int best = accepted;
+            boolean promising = true;
+            for (int i = 0; i < child.label.length() && promising; i++) {
+                r = nextRow(r, query, child.label.charAt(i));
+                best = Math.min(best, r[m]);
+                /* No entry of a later row is less than the least of this one. */
+                promising = min(r) < best;
+            }
+            if (best < accepted) {
+                accept(child, best, k, edits);
             }
+            if (promising) {
+                fuzzy(child, query, r, maxEdits, best, k, edits);
+            }
+        }
+    }
+
+    /** The automaton's row after reading <code>ch</code>, from the row before. */
+    private static int[] nextRow(int[] row, String query, char ch) {
+        int[] next = new int[row.length];
+        next[0] = row[0] + 1;
+        for (int j = 1; j < row.length; j++) {
+            int replace = row[j - 1] + (query.charAt(j - 1) == ch ? 0 : 1);
+            next[j] = Math.min(replace, Math.min(row[j], next[j - 1]) + 1);
+        }
+        return next;
+    }
+
+    private static int min(int[] row) {
+        int min = row[0];
+        for (int v : row) {
+            min = Math.min(min, v);
         }
+        return min;
     }
 
-    private class TrieNode {
-        private HashMap<Character, TrieNode> nextLetters;
-        private GraphNode myNode;
+    /** Record that every name below <code>t</code> is within <code>distance</code> edits. */
+    private void accept(Node t, int distance, int k, Map<Entry, Integer> edits) {
+        List<Entry> entries;
+        if (k > topK) {
+            entries = new ArrayList<>();
+            collectEntries(t, entries);
+        } else {
+            entries = Arrays.asList(t.top);
+        }
+        for (Entry e : entries) {
+            edits.merge(e, distance, Math::min);
+        }
+    }
 
-        TrieNode() {
-            nextLetters = new HashMap<>();
+    /** Names are cleaned, unless nothing is left of them. */
+    private static String key(String name) {
+        String cleaned = GraphDB.cleanString(name);
+        return cleaned.isEmpty() ? name : cleaned;
+    }
+
+    private static int commonPrefixLength(String label, String key, int from) {
+        int n = Math.min(label.length(), key.length() - from);
+        int i = 0;
+        while (i < n && label.charAt(i) == key.charAt(from + i)) {
+            i++;
+        }
+        return i;
+    }
+
+    /** The highest node whose path from the root starts with <code>prefix</code>, if any. */
+    private Node find(String prefix) {
+        Node curr = root;
+        int i = 0;
+        while (i < prefix.length()) {
+            int c = curr.childIndex(prefix.charAt(i));
+            if (c < 0) {
+                return null;
+            }
+            Node child = curr.children[c];
+            int n = Math.min(child.label.length(), prefix.length() - i);
+            if (!child.label.regionMatches(0, prefix, i, n)) {
+                return null;
+            }
+            curr = child;
+            i += n;
+        }
+        return curr;
+    }
+
+    private static void collect(Node t, List<GraphNode> words) {
+        if (t.entry != null) {
+            words.add(t.entry.node);
+        }
+        for (int i = 0; i < t.childCount; i++) {
+            collect(t.children[i], words);
+        }
+    }
+
+    private static void collectEntries(Node t, List<Entry> entries) {
+        if (t.entry != null) {
+            entries.add(t.entry);
+        }
+        for (int i = 0; i < t.childCount; i++) {
+            collectEntries(t.children[i], entries);
+        }
+    }
+
+    private synchronized void rank() {
+        if (!ranked) {
+            rank(root);
+            ranked = true;
+        }
+    }
+
+    /** Fill in the best names below <code>t</code> from those of its children. */
+    private void rank(Node t) {
+        List<Entry> candidates = new ArrayList<>();
+        if (t.entry != null) {
+            candidates.add(t.entry);
+        }
+        for (int i = 0; i < t.childCount; i++) {
+            rank(t.children[i]);
+            candidates.addAll(Arrays.asList(t.children[i].top));
+        }
+        candidates.sort(ranking);
+        t.top = candidates.subList(0, Math.min(topK, candidates.size())).toArray(new Entry[0]);
+    }
+
+    /** A cleaned name, the location last added under it, and how many were. */
+    static final class Entry {
+        final String key;
+        GraphNode node;
+        int count;
+
+        Entry(String key) {
+            this.key = key;
+        }
+    }
+
+    private static final class Node {
+        /** The characters on the edge into this node. */
+        private String label;
+        private char[] firsts = new char[0];
+        private Node[] children = new Node[0];
+        private int childCount;
+        private Entry entry;
+        /** The best names at or below this node, best first. */
+        private Entry[] top;
+
+        Node(String label) {
+            this.label = label;
+        }
+
+        /** Index of the child whose label starts with c, or ~(where it would be inserted). */
+        int childIndex(char c) {
+            return Arrays.binarySearch(firsts, 0, childCount, c);
+        }
+
+        void insertChild(int at, Node child) {
+            if (childCount == children.length) {
+                int capacity = Math.max(2, childCount * 2);
+                firsts = Arrays.copyOf(firsts, capacity);
+                children = Arrays.copyOf(children, capacity);
+            }
+            System.arraycopy(firsts, at, firsts, at + 1, childCount - at);
+            System.arraycopy(children, at, children, at + 1, childCount - at);
+            firsts[at] = child.label.charAt(0);
+            children[at] = child;
+            childCount++;
         }
     }
 }
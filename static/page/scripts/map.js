@@ -23,6 +23,8 @@ var img_w, img_h;
 var wdpp = 0.00004291534423828125; // Starting wdpp for level 3
 var hdpp = 0.00003388335630702399; // Starting hdpp for level 3
 var max_level = 7; var min_level = 2; // Level limits based on pulled data
+// "binary" fetches the image from its own URL instead of inline Base64; "" for the old way
+var raster_mode = "binary";
 
 // Compute lat and lon by window size
 function real_lrlat() { return params["ullat"] - hdpp * params["h"]; }
@@ -259,11 +261,15 @@ $( document ).ready(function() {
         $.get({
             async: false,
             url: raster_server,
-            data: jQuery.extend(params, route_params),
+            data: jQuery.extend(params, route_params, {mode: raster_mode}),
             success: function(data) {
                 if (data.query_success) {
                     console.log("Updating map");
-                    map.src = "data:image/jpg;base64," + data.b64_encoded_image_data;
+                    if (data.image_url) {
+                        map.src = host + data.image_url;
+                    } else {
+                        map.src = "data:image/jpg;base64," + data.b64_encoded_image_data;
+                    }
                     ullon_bound = data.raster_ul_lon;
                     ullat_bound = data.raster_ul_lat;
                     lrlon_bound = data.raster_lr_lon;
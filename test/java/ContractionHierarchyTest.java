@@ -0,0 +1,144 @@
+import org.junit.Test;
+
+import java.io.File;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the contraction hierarchy against plain A* on a small hand-built road grid, and that a
+ * saved hierarchy is only loaded back for the exact graph it was built from.
+ */
+public class ContractionHierarchyTest {
+    private static final int SIDE = 8;
+    private static final int PAIRS = 500;
+    private static final double EPSILON = 1e-12;
+
+    /**
+     * A SIDE x SIDE grid of junctions inside the ROOT box, each road between neighbors drawn
+     * through up to two shape points, plus a few diagonal roads.
+     * @param moved Id of a node to shift slightly north, or -1 for none.
+     */
+    private static RoadGraph grid(long moved) {
+        Random r = new Random(7);
+        RoadGraph.Builder roads = new RoadGraph.Builder();
+        double width = MapServer.ROOT_LRLON - MapServer.ROOT_ULLON;
+        double height = MapServer.ROOT_ULLAT - MapServer.ROOT_LRLAT;
+        double[] lons = new double[SIDE * SIDE];
+        double[] lats = new double[SIDE * SIDE];
+        for (int i = 0; i < SIDE * SIDE; i++) {
+            lons[i] = MapServer.ROOT_ULLON + (i % SIDE + r.nextDouble() * 0.5) * width / SIDE;
+            lats[i] = MapServer.ROOT_LRLAT + (i / SIDE + r.nextDouble() * 0.5) * height / SIDE;
+            addNode(roads, i + 1, lons[i], lats[i], moved);
+        }
+        long nextId = SIDE * SIDE + 1;
+        for (int i = 0; i < SIDE * SIDE; i++) {
+            if (i % SIDE < SIDE - 1) {
+                nextId = addRoad(roads, r, lons, lats, i, i + 1, nextId, moved);
+            }
+            if (i / SIDE < SIDE - 1) {
+                nextId = addRoad(roads, r, lons, lats, i, i + SIDE, nextId, moved);
+            }
+            if (i % SIDE < SIDE - 1 && i / SIDE < SIDE - 1 && r.nextInt(4) == 0) {
+                nextId = addRoad(roads, r, lons, lats, i, i + SIDE + 1, nextId, moved);
+            }
+        }
+        return GraphCleaner.clean(roads.build());
+    }
+
+    private static int addNode(RoadGraph.Builder roads, long id, double lon, double lat,
+                               long moved) {
+        return roads.addNode(id, lon, id == moved ? lat + 1e-5 : lat);
+    }
+
+    /**
+     * A road between junctions a and b, which are also their builder indexes, through up to
+     * two shape points off the straight line.
+     * @return The id for the next new node.
+     */
+    private static long addRoad(RoadGraph.Builder roads, Random r, double[] lons, double[] lats,
+                                int a, int b, long nextId, long moved) {
+        int prev = a;
+        int shapes = r.nextInt(3);
+        for (int k = 1; k <= shapes; k++) {
+            double t = (double) k / (shapes + 1);
+            double lon = lons[a] + t * (lons[b] - lons[a]) + (r.nextDouble() - 0.5) * 1e-3;
+            double lat = lats[a] + t * (lats[b] - lats[a]) + (r.nextDouble() - 0.5) * 1e-3;
+            int shape = addNode(roads, nextId++, lon, lat, moved);
+            roads.addSegment(prev, shape);
+            prev = shape;
+        }
+        roads.addSegment(prev, b);
+        return nextId;
+    }
+
+    /** Length of a route, checking it runs along roads of <code>graph</code>. */
+    private static double length(RoadGraph graph, int[] route, int start, int end) {
+        assertTrue("Route is empty", route.length > 0);
+        assertEquals(start, route[0]);
+        assertEquals(end, route[route.length - 1]);
+        double length = 0;
+        for (int i = 1; i < route.length; i++) {
+            int u = route[i - 1];
+            int v = route[i];
+            length += MapServer.h(graph.lon(u), graph.lat(u), graph.lon(v), graph.lat(v));
+        }
+        return length;
+    }
+
+    @Test
+    public void testRoutesMatchAStar() {
+        RoadGraph graph = grid(-1);
+        assertTrue("Grid has no shape points", graph.junctionCount() < graph.size());
+        AStarRouter astar = new AStarRouter(graph);
+        ContractionHierarchy.Query ch = ContractionHierarchy.build(graph).newQuery();
+        Random r = new Random(11);
+        for (int i = 0; i < PAIRS; i++) {
+            int start = r.nextInt(graph.size());
+            int end = r.nextInt(graph.size());
+            double expected = length(graph, astar.route(start, end), start, end);
+            double actual = length(graph, ch.route(start, end), start, end);
+            assertEquals("Route from " + start + " to " + end, expected, actual, EPSILON);
+        }
+    }
+
+    @Test
+    public void testSaveLoadRoundTrip() throws Exception {
+        RoadGraph graph = grid(-1);
+        ContractionHierarchy built = ContractionHierarchy.build(graph);
+        File file = File.createTempFile("grid", ".ch");
+        file.deleteOnExit();
+        built.save(file);
+
+        ContractionHierarchy loaded = ContractionHierarchy.load(file, graph);
+        assertNotNull("Hierarchy was not loaded back for its own graph", loaded);
+        ContractionHierarchy.Query before = built.newQuery();
+        ContractionHierarchy.Query after = loaded.newQuery();
+        Random r = new Random(13);
+        for (int i = 0; i < PAIRS; i++) {
+            int start = r.nextInt(graph.size());
+            int end = r.nextInt(graph.size());
+            assertArrayEquals(before.route(start, end), after.route(start, end));
+        }
+    }
+
+    @Test
+    public void testLoadRejectsMovedNodes() throws Exception {
+        RoadGraph graph = grid(-1);
+        File file = File.createTempFile("grid", ".ch");
+        file.deleteOnExit();
+        ContractionHierarchy.build(graph).save(file);
+
+        /* Same ids and roads, but one junction and one shape point moved. */
+        for (long moved : new long[]{SIDE + 2, SIDE * SIDE + 3}) {
+            RoadGraph shifted = grid(moved);
+            assertEquals(graph.size(), shifted.size());
+            assertNull("Hierarchy was loaded for a graph whose node " + moved + " moved",
+                    ContractionHierarchy.load(file, shifted));
+        }
+    }
+}
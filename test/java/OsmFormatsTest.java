@@ -0,0 +1,99 @@
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Reads the same tiny extract as OSM XML, bzip2-compressed XML and PBF, and checks all three
+ * give the same road graph and named locations. The PBF copy mixes dense and plain nodes and
+ * raw and zlib-compressed blobs. Run from the repository root, where test/data is.
+ */
+public class OsmFormatsTest {
+    private static final String TINY = "test/data/tiny.osm";
+
+    /** The fields of each location, which GraphNode does not compare itself. */
+    private static List<String> describe(List<GraphNode> locations) {
+        List<String> described = new ArrayList<>();
+        for (GraphNode node : locations) {
+            described.add(node.id() + " " + node.getName() + " " + node.getLon() + " "
+                    + node.getLat());
+        }
+        return described;
+    }
+
+    private static void assertSameGraph(String format, GraphDB expected, GraphDB actual) {
+        RoadGraph want = expected.graph();
+        RoadGraph got = actual.graph();
+        assertEquals(format + " junctions", want.junctionCount(), got.junctionCount());
+        assertArrayEquals(format + " ids", want.ids(), got.ids());
+        assertArrayEquals(format + " offsets", want.offsets(), got.offsets());
+        assertArrayEquals(format + " targets", want.targets(), got.targets());
+        for (int v = 0; v < want.size(); v++) {
+            assertEquals(format + " lon of " + want.id(v), want.lon(v), got.lon(v), 0);
+            assertEquals(format + " lat of " + want.id(v), want.lat(v), got.lat(v), 0);
+        }
+        assertEquals(format + " locations", describe(expected.locations()),
+                describe(actual.locations()));
+    }
+
+    @Test
+    public void testXmlExtract() {
+        GraphDB xml = new GraphDB(TINY, false);
+        RoadGraph graph = xml.graph();
+        HashSet<Long> ids = new HashSet<>();
+        for (int v = 0; v < graph.size(); v++) {
+            ids.add(graph.id(v));
+        }
+        /* Roads 100 to 103, without the fragment 10-11, the footway, the building, or the
+         * reference to missing node 99. */
+        assertEquals(new HashSet<>(Arrays.asList(1L, 2L, 3L, 4L, 5L, 6L, 7L, 8L, 13L,
+                3000000001L)), ids);
+        assertEquals(Arrays.asList("2 Caf\u00e9 Strada -122.2587654 37.8701234",
+                "5 Joe's Pizza -122.2561111 37.869",
+                "9 Top Dog -122.265 37.865",
+                "12 Berkeley Bowl & Market -122.251 37.874"), describe(xml.locations()));
+    }
+
+    @Test
+    public void testFormatsAgree() {
+        GraphDB xml = new GraphDB(TINY, false);
+        assertSameGraph("bzip2", xml, new GraphDB(TINY + ".bz2", false));
+        assertSameGraph("pbf", xml, new GraphDB(TINY + ".pbf", false));
+    }
+
+    @Test
+    public void testTruncatedFilesFail() throws IOException {
+        for (String suffix : new String[]{".bz2", ".pbf"}) {
+            byte[] whole = Files.readAllBytes(new File(TINY + suffix).toPath());
+            File truncated = File.createTempFile("tiny", ".osm" + suffix);
+            truncated.deleteOnExit();
+            try (FileOutputStream out = new FileOutputStream(truncated)) {
+                out.write(whole, 0, whole.length * 2 / 3);
+            }
+            boolean failed = false;
+            try {
+                new GraphDB(truncated.getPath(), false);
+            } catch (IllegalStateException e) {
+                failed = true;
+            }
+            assertTrue("Truncated " + suffix + " file was read without an error", failed);
+        }
+    }
+
+    @Test
+    public void testMissingFileIsEmpty() {
+        assertFalse(new File("test/data/missing.osm").exists());
+        assertEquals(0, new GraphDB("test/data/missing.osm", false).graph().size());
+    }
+}
@@ -0,0 +1,86 @@
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Hammers one shared QuadTree from many threads and checks every answer against the same query
+ * run alone, the way concurrent /raster requests share MapServer's tree.
+ */
+public class QuadTreeConcurrencyTest {
+    private static final int THREADS = 16;
+    private static final int QUERIES = 400;
+    private static final int ROUNDS = 10;
+
+    private static Map<String, Double> randomQuery(Random r) {
+        double width = MapServer.ROOT_LRLON - MapServer.ROOT_ULLON;
+        double height = MapServer.ROOT_ULLAT - MapServer.ROOT_LRLAT;
+        double ullon = MapServer.ROOT_ULLON + r.nextDouble() * width;
+        double ullat = MapServer.ROOT_ULLAT - r.nextDouble() * height;
+        Map<String, Double> query = new HashMap<>();
+        query.put("ullon", ullon);
+        query.put("ullat", ullat);
+        query.put("lrlon", ullon + r.nextDouble() * width / 4);
+        query.put("lrlat", ullat - r.nextDouble() * height / 4);
+        query.put("w", 200.0 + r.nextInt(1200));
+        query.put("h", 200.0 + r.nextInt(800));
+        return query;
+    }
+
+    private static List<String> names(List<QTreeNode> tiles) {
+        List<String> names = new ArrayList<>();
+        for (QTreeNode tile : tiles) {
+            names.add(tile.getName());
+        }
+        return names;
+    }
+
+    @Test(timeout = 60000)
+    public void testConcurrentQueriesMatchSerialResults() throws Exception {
+        QuadTree tree = new QuadTree();
+        Random r = new Random(61);
+        List<Map<String, Double>> queries = new ArrayList<>();
+        List<List<String>> expected = new ArrayList<>();
+        for (int i = 0; i < QUERIES; i++) {
+            Map<String, Double> query = randomQuery(r);
+            queries.add(query);
+            expected.add(names(tree.getImg(query)));
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+        try {
+            List<Future<Integer>> results = new ArrayList<>();
+            for (int t = 0; t < THREADS; t++) {
+                int offset = t;
+                results.add(pool.submit(() -> {
+                    int checked = 0;
+                    for (int round = 0; round < ROUNDS; round++) {
+                        for (int i = 0; i < QUERIES; i++) {
+                            int q = (i * 7 + offset + round) % QUERIES;
+                            assertEquals("Tiles differ for " + queries.get(q),
+                                    expected.get(q), names(tree.getImg(queries.get(q))));
+                            checked++;
+                        }
+                    }
+                    return checked;
+                }));
+            }
+            for (Future<Integer> result : results) {
+                assertEquals(ROUNDS * QUERIES, (int) result.get());
+            }
+        } finally {
+            pool.shutdown();
+            assertTrue(pool.awaitTermination(10, TimeUnit.SECONDS));
+        }
+    }
+}
@@ -0,0 +1,164 @@
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks word search in the inverted index against a scan of every location added, including
+ * posting lists whose gaps take more than one byte and lists extended after a search.
+ */
+public class TokenIndexTest {
+    private static final String[] WORDS = {"pizza", "cafe", "joes", "top", "dog", "bowl"};
+
+    /** Every location added whose cleaned name has each word of the cleaned query. */
+    private static List<GraphNode> scan(List<GraphNode> added, String query) {
+        List<String> words = words(query);
+        List<GraphNode> found = new ArrayList<>();
+        if (words.isEmpty()) {
+            return found;
+        }
+        for (GraphNode node : added) {
+            if (words(node.getName()).containsAll(words)) {
+                found.add(node);
+            }
+        }
+        return found;
+    }
+
+    private static List<String> words(String name) {
+        List<String> words = new ArrayList<>();
+        for (String word : GraphDB.cleanString(name).split(" ")) {
+            if (!word.isEmpty()) {
+                words.add(word);
+            }
+        }
+        return words;
+    }
+
+    /** A name of one to three of WORDS, some with other case or punctuation. */
+    private static String randomName(Random r) {
+        StringBuilder name = new StringBuilder();
+        int words = 1 + r.nextInt(3);
+        for (int w = 0; w < words; w++) {
+            String word = WORDS[r.nextInt(WORDS.length)];
+            name.append(w > 0 ? " " : "").append(r.nextInt(4) == 0 ? word.toUpperCase() : word);
+            if (r.nextInt(5) == 0) {
+                name.append('!');
+            }
+        }
+        return name.toString();
+    }
+
+    private static void assertMatchesScan(TokenIndex index, List<GraphNode> added) {
+        List<String> queries = new ArrayList<>(Arrays.asList(WORDS));
+        for (String a : WORDS) {
+            for (String b : WORDS) {
+                queries.add(a + " " + b);
+            }
+        }
+        queries.add("pizza cafe dog");
+        for (String query : queries) {
+            assertEquals("Search for \"" + query + "\"", scan(added, query),
+                    index.getLocationsWithWords(query));
+        }
+    }
+
+    @Test
+    public void testMatchesScan() {
+        Random r = new Random(29);
+        TokenIndex index = new TokenIndex();
+        List<GraphNode> added = new ArrayList<>();
+        /* Search between batches too, so later locations are packed onto existing lists. */
+        for (int batch = 0; batch < 4; batch++) {
+            for (int i = 0; i < 300; i++) {
+                GraphNode node = new GraphNode(batch * 1000 + i, randomName(r), 0, 0);
+                index.addNode(node);
+                added.add(node);
+            }
+            assertMatchesScan(index, added);
+        }
+    }
+
+    @Test
+    public void testMultiByteGaps() {
+        TokenIndex index = new TokenIndex();
+        List<GraphNode> rare = new ArrayList<>();
+        /* Gaps of 1, 127, 128, 16383 and 16384 locations, around each varint byte boundary. */
+        int[] at = {0, 1, 128, 256, 16639, 33023};
+        int next = 0;
+        for (int location = 0; location <= at[at.length - 1]; location++) {
+            String name = "Filler " + location % 7;
+            if (next < at.length && at[next] == location) {
+                name = "Rare Cafe";
+                next++;
+            }
+            GraphNode node = new GraphNode(location, name, 0, 0);
+            index.addNode(node);
+            if (name.equals("Rare Cafe")) {
+                rare.add(node);
+            }
+            if (location == 200) {
+                /* Pack part of the list, so the rest is encoded following its last location. */
+                assertEquals(rare, index.getLocationsWithWords("rare"));
+            }
+        }
+        assertEquals(rare, index.getLocationsWithWords("rare"));
+        assertEquals(rare, index.getLocationsWithWords("cafe rare"));
+        assertEquals(rare, index.getLocationsWithWords("RARE!"));
+    }
+
+    @Test
+    public void testRebuildAfterMoreAdditions() {
+        TokenIndex index = new TokenIndex();
+        GraphNode first = new GraphNode(1, "Joe's Pizza", 0, 0);
+        index.addNode(first);
+        assertEquals(Arrays.asList(first), index.getLocationsWithWords("pizza"));
+
+        GraphNode second = new GraphNode(2, "Pizza Napoli", 0, 0);
+        GraphNode third = new GraphNode(3, "Napoli", 0, 0);
+        index.addNode(second);
+        index.addNode(third);
+        assertEquals(Arrays.asList(first, second), index.getLocationsWithWords("pizza"));
+        assertEquals(Arrays.asList(second, third), index.getLocationsWithWords("napoli"));
+        assertEquals(Arrays.asList(second), index.getLocationsWithWords("napoli pizza"));
+    }
+
+    @Test
+    public void testMissingWords() {
+        TokenIndex index = new TokenIndex();
+        assertEquals(new ArrayList<GraphNode>(), index.getLocationsWithWords("pizza"));
+        index.addNode(new GraphNode(1, "Joe's Pizza", 0, 0));
+        assertEquals(new ArrayList<GraphNode>(), index.getLocationsWithWords("sushi"));
+        assertEquals(new ArrayList<GraphNode>(), index.getLocationsWithWords("pizza sushi"));
+        assertEquals(new ArrayList<GraphNode>(), index.getLocationsWithWords("pizz"));
+        assertEquals(new ArrayList<GraphNode>(), index.getLocationsWithWords(""));
+        assertEquals(new ArrayList<GraphNode>(), index.getLocationsWithWords("!! ?"));
+    }
+
+    @Test
+    public void testRepeatedWords() {
+        TokenIndex index = new TokenIndex();
+        GraphNode bowl = new GraphNode(1, "Bowl Bowl", 0, 0);
+        GraphNode market = new GraphNode(2, "Berkeley Bowl Market", 0, 0);
+        index.addNode(bowl);
+        index.addNode(market);
+        /* A word repeated in a name or a query is only counted once. */
+        assertEquals(Arrays.asList(bowl, market), index.getLocationsWithWords("bowl"));
+        assertEquals(Arrays.asList(bowl, market), index.getLocationsWithWords("Bowl bowl BOWL"));
+        assertEquals(Arrays.asList(market), index.getLocationsWithWords("bowl market bowl"));
+    }
+
+    @Test
+    public void testSameNodeIndexedOnce() {
+        TokenIndex index = new TokenIndex();
+        GraphNode pizza = new GraphNode(1, "Joe's Pizza", 0, 0);
+        index.addNode(pizza);
+        index.getLocationsWithWords("pizza");
+        index.addNode(new GraphNode(1, "Joe's Pizza", 0, 0));
+        assertEquals(Arrays.asList(pizza), index.getLocationsWithWords("pizza"));
+    }
+}
@@ -0,0 +1,322 @@
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeSet;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks the radix trie's prefix searches against a brute-force scan of every name added, under
+ * each ranking, including names that split existing edges and names added more than once.
+ */
+public class TrieTest {
+    private static final int TOP_K = 4;
+    private static final int[] KS = {1, 3, TOP_K, TOP_K + 1, 50};
+    private static final String[] RANKINGS = {"common", "shortest", "alphabetical"};
+
+    /** Locations added to a trie so far, so the expected answers can be worked out by scan. */
+    private static final class Added {
+        private final List<GraphNode> nodes = new ArrayList<>();
+
+        void add(Trie trie, GraphNode node) {
+            trie.addNode(node);
+            nodes.add(node);
+        }
+
+        /** How many locations were added under each cleaned name. */
+        Map<String, Integer> counts() {
+            Map<String, Integer> counts = new HashMap<>();
+            for (GraphNode node : nodes) {
+                counts.merge(key(node.getName()), 1, Integer::sum);
+            }
+            return counts;
+        }
+
+        /** The last location added under each cleaned name. */
+        Map<String, GraphNode> latest() {
+            Map<String, GraphNode> latest = new HashMap<>();
+            for (GraphNode node : nodes) {
+                latest.put(key(node.getName()), node);
+            }
+            return latest;
+        }
+    }
+
+    private static String key(String name) {
+        String cleaned = GraphDB.cleanString(name);
+        return cleaned.isEmpty() ? name : cleaned;
+    }
+
+    /** The order of cleaned names under <code>ranking</code>, written out independently. */
+    private static Comparator<String> order(String ranking, Map<String, Integer> counts) {
+        Comparator<String> alphabetical = Comparator.naturalOrder();
+        Comparator<String> shortest = Comparator.comparingInt(String::length);
+        switch (ranking) {
+            case "common":
+                return Comparator.comparingInt((String key) -> -counts.get(key))
+                        .thenComparing(shortest).thenComparing(alphabetical);
+            case "shortest":
+                return shortest.thenComparing(alphabetical);
+            default:
+                return alphabetical;
+        }
+    }
+
+    /**
+     * Every location under <code>prefix</code>, best first, by sorting every matching name.
+     * @param counts Locations added under each cleaned name.
+     * @param latest Last location added under each cleaned name.
+     */
+    private static List<GraphNode> bruteRanked(Map<String, Integer> counts,
+                                               Map<String, GraphNode> latest, String ranking,
+                                               String prefix) {
+        String cleaned = key(prefix);
+        List<String> keys = new ArrayList<>();
+        for (String key : counts.keySet()) {
+            if (key.startsWith(cleaned)) {
+                keys.add(key);
+            }
+        }
+        keys.sort(order(ranking, counts));
+        List<GraphNode> ranked = new ArrayList<>();
+        for (String key : keys) {
+            ranked.add(latest.get(key));
+        }
+        return ranked;
+    }
+
+    /** Every prefix of every name added, the empty prefix, and a few that match nothing. */
+    private static TreeSet<String> prefixes(Added added) {
+        TreeSet<String> prefixes = new TreeSet<>(Arrays.asList("", "z", "abz", "dddddddd"));
+        for (String key : added.counts().keySet()) {
+            for (int i = 1; i <= key.length(); i++) {
+                prefixes.add(key.substring(0, i));
+            }
+        }
+        return prefixes;
+    }
+
+    private static void assertMatchesBruteForce(Trie trie, Added added, String ranking) {
+        Map<String, Integer> counts = added.counts();
+        Map<String, GraphNode> latest = added.latest();
+        for (String prefix : prefixes(added)) {
+            assertEquals("All names under \"" + prefix + "\"",
+                    bruteRanked(counts, latest, "alphabetical", prefix),
+                    trie.getWordsWithPrefix(prefix));
+            List<GraphNode> ranked = bruteRanked(counts, latest, ranking, prefix);
+            for (int k : KS) {
+                assertEquals(ranking + " top " + k + " under \"" + prefix + "\"",
+                        ranked.subList(0, Math.min(k, ranked.size())),
+                        trie.getTopWithPrefix(prefix, k));
+            }
+        }
+    }
+
+    /**
+     * A name of one to three short words over a four-letter alphabet, so names share long
+     * prefixes and many are added more than once, sometimes with other case or punctuation.
+     */
+    private static String randomName(Random r) {
+        StringBuilder name = new StringBuilder();
+        int words = 1 + r.nextInt(3);
+        for (int w = 0; w < words; w++) {
+            if (w > 0) {
+                name.append(' ');
+            }
+            int length = 1 + r.nextInt(3);
+            for (int i = 0; i < length; i++) {
+                char c = (char) ('a' + r.nextInt(4));
+                name.append(r.nextInt(5) == 0 ? Character.toUpperCase(c) : c);
+            }
+            if (r.nextInt(6) == 0) {
+                name.append('\'');
+            }
+        }
+        return name.toString();
+    }
+
+    @Test
+    public void testTopMatchesBruteForce() {
+        for (String ranking : RANKINGS) {
+            Random r = new Random(17);
+            Trie trie = new Trie(Trie.ranking(ranking), TOP_K);
+            Added added = new Added();
+            /* Check between batches too, so names added after a search are ranked as well. */
+            for (int batch = 0; batch < 3; batch++) {
+                for (int i = 0; i < 150; i++) {
+                    added.add(trie, new GraphNode(batch * 1000 + i, randomName(r), 0, 0));
+                }
+                assertMatchesBruteForce(trie, added, ranking);
+            }
+        }
+    }
+
+    @Test
+    public void testEdgeSplits() {
+        Trie trie = new Trie(Trie.MOST_COMMON, TOP_K);
+        Added added = new Added();
+        /* Each name ends inside, or branches from the middle of, an edge added before it. */
+        String[] names = {"Berkeley Bowl", "Berkeley", "Berk", "Bert's", "Be", "Berkeley Bowl"};
+        for (int i = 0; i < names.length; i++) {
+            added.add(trie, new GraphNode(i, names[i], 0, 0));
+        }
+        assertEquals(Arrays.asList("Be", "Berk", "Berkeley", "Berkeley Bowl", "Bert's"),
+                names(trie.getWordsWithPrefix("")));
+        assertEquals(Arrays.asList("Berkeley", "Berkeley Bowl"),
+                names(trie.getWordsWithPrefix("berke")));
+        assertEquals(Arrays.asList("Berkeley Bowl"), names(trie.getWordsWithPrefix("Berkeley B")));
+        assertEquals(new ArrayList<String>(), names(trie.getWordsWithPrefix("berz")));
+        assertEquals(new ArrayList<String>(), names(trie.getWordsWithPrefix("berkeley bowls")));
+        assertMatchesBruteForce(trie, added, "common");
+    }
+
+    @Test
+    public void testRepeatedNamesRankFirst() {
+        Trie trie = new Trie(Trie.MOST_COMMON, TOP_K);
+        trie.addNode(new GraphNode(1, "Pizza", 0, 0));
+        trie.addNode(new GraphNode(2, "Peet's Coffee", 0, 0));
+        trie.addNode(new GraphNode(3, "PEETS coffee", 0, 0));
+        trie.addNode(new GraphNode(4, "Pho", 0, 0));
+        List<GraphNode> top = trie.getTopWithPrefix("p", 2);
+        /* The latest of the two spellings stands for the name both count towards. */
+        assertEquals(Arrays.asList("PEETS coffee", "Pho"), names(top));
+        assertEquals(3, top.get(0).id());
+    }
+
+    @Test
+    public void testEmptyPrefix() {
+        Trie trie = new Trie(Trie.SHORTEST, TOP_K);
+        assertEquals(new ArrayList<String>(), names(trie.getTopWithPrefix("", 3)));
+        assertEquals(new ArrayList<String>(), names(trie.getWordsWithPrefix("")));
+        String[] names = {"Cafe Strada", "Top Dog", "Ike's", "Cheese Board", "Joe's"};
+        for (int i = 0; i < names.length; i++) {
+            trie.addNode(new GraphNode(i, names[i], 0, 0));
+        }
+        assertEquals(Arrays.asList("Ike's", "Joe's", "Top Dog"),
+                names(trie.getTopWithPrefix("", 3)));
+        assertEquals(5, trie.getTopWithPrefix("", TOP_K + 10).size());
+        assertEquals(new ArrayList<String>(), names(trie.getTopWithPrefix("", 0)));
+    }
+
+    /** Fewest edits turning <code>query</code> into some prefix of <code>key</code>. */
+    private static int prefixDistance(String query, String key) {
+        int[] row = new int[query.length() + 1];
+        for (int j = 0; j < row.length; j++) {
+            row[j] = j;
+        }
+        int best = row[query.length()];
+        for (int i = 0; i < key.length(); i++) {
+            int[] next = new int[row.length];
+            next[0] = i + 1;
+            for (int j = 1; j < row.length; j++) {
+                int replace = row[j - 1] + (query.charAt(j - 1) == key.charAt(i) ? 0 : 1);
+                next[j] = Math.min(replace, Math.min(row[j], next[j - 1]) + 1);
+            }
+            row = next;
+            best = Math.min(best, row[query.length()]);
+        }
+        return best;
+    }
+
+    /**
+     * Every location within maxEdits of <code>query</code>, best first, by scoring every name.
+     * @param counts Locations added under each cleaned name.
+     * @param latest Last location added under each cleaned name.
+     */
+    private static List<GraphNode> bruteFuzzy(Map<String, Integer> counts,
+                                              Map<String, GraphNode> latest, String ranking,
+                                              String query, int maxEdits) {
+        String cleaned = key(query);
+        Map<String, Integer> distances = new HashMap<>();
+        for (String key : counts.keySet()) {
+            int distance = prefixDistance(cleaned, key);
+            if (distance <= maxEdits) {
+                distances.put(key, distance);
+            }
+        }
+        List<String> keys = new ArrayList<>(distances.keySet());
+        keys.sort(Comparator.comparingInt((String key) -> distances.get(key))
+                .thenComparing(order(ranking, counts)));
+        List<GraphNode> ranked = new ArrayList<>();
+        for (String key : keys) {
+            ranked.add(latest.get(key));
+        }
+        return ranked;
+    }
+
+    /** A prefix of <code>key</code> with up to two characters inserted, deleted or replaced. */
+    private static String typo(Random r, String key) {
+        StringBuilder query = new StringBuilder(key.substring(0, r.nextInt(key.length() + 1)));
+        int typos = r.nextInt(3);
+        for (int t = 0; t < typos; t++) {
+            int at = r.nextInt(query.length() + 1);
+            char c = "abcde ".charAt(r.nextInt(6));
+            if (at == query.length() || r.nextInt(3) == 0) {
+                query.insert(at, c);
+            } else if (r.nextBoolean()) {
+                query.deleteCharAt(at);
+            } else {
+                query.setCharAt(at, c);
+            }
+        }
+        return query.toString();
+    }
+
+    @Test
+    public void testFuzzyMatchesBruteForce() {
+        for (String ranking : RANKINGS) {
+            Random r = new Random(23);
+            Trie trie = new Trie(Trie.ranking(ranking), TOP_K);
+            Added added = new Added();
+            for (int i = 0; i < 300; i++) {
+                added.add(trie, new GraphNode(i, randomName(r), 0, 0));
+            }
+            Map<String, Integer> counts = added.counts();
+            Map<String, GraphNode> latest = added.latest();
+            List<String> keys = new ArrayList<>(counts.keySet());
+            for (int i = 0; i < 200; i++) {
+                /* Includes queries no longer than maxEdits, which every name is close enough to. */
+                String query = typo(r, keys.get(r.nextInt(keys.size())));
+                for (int maxEdits = 0; maxEdits <= 2; maxEdits++) {
+                    List<GraphNode> ranked = bruteFuzzy(counts, latest, ranking, query, maxEdits);
+                    for (int k : KS) {
+                        assertEquals(ranking + " top " + k + " within " + maxEdits + " of \""
+                                        + query + "\"",
+                                ranked.subList(0, Math.min(k, ranked.size())),
+                                trie.getFuzzyWithPrefix(query, maxEdits, k));
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testFuzzyShortQueryMatchesEverything() {
+        Trie trie = new Trie(Trie.MOST_COMMON, TOP_K);
+        String[] names = {"Pizza", "Pho", "Top Dog", "Pho"};
+        for (int i = 0; i < names.length; i++) {
+            trie.addNode(new GraphNode(i, names[i], 0, 0));
+        }
+        /* One edit turns "t" into the empty prefix, which every name starts with. */
+        assertEquals(Arrays.asList("Top Dog", "Pho", "Pizza"),
+                names(trie.getFuzzyWithPrefix("t", 1, 10)));
+        assertEquals(Arrays.asList("Top Dog", "Pho"), names(trie.getFuzzyWithPrefix("t", 1, 2)));
+        assertEquals(Arrays.asList("Top Dog"), names(trie.getFuzzyWithPrefix("t", 0, 10)));
+        assertEquals(Arrays.asList("Pho", "Pizza"), names(trie.getFuzzyWithPrefix("px", 1, 10)));
+        assertEquals(new ArrayList<String>(), names(trie.getFuzzyWithPrefix("px", 1, 0)));
+    }
+
+    private static List<String> names(List<GraphNode> nodes) {
+        List<String> names = new ArrayList<>();
+        for (GraphNode node : nodes) {
+            names.add(node.getName());
+        }
+        return names;
+    }
+}